@@ -6,18 +6,27 @@ import com.testdroid.api.APIQueryBuilder;
 import com.testdroid.api.model.*;
 import com.testdroid.api.model.APITestRunConfig.Scheduler;
 import com.testdroid.jenkins.model.TestRunStateCheckMethod;
+import com.testdroid.jenkins.remotesupport.DeviceTestResultCollector;
 import com.testdroid.jenkins.remotesupport.MachineIndependentFileUploader;
 import com.testdroid.jenkins.remotesupport.MachineIndependentResultsDownloader;
+import com.testdroid.jenkins.remotesupport.ParallelFileUploader;
 import com.testdroid.jenkins.scheduler.TestRunFinishCheckScheduler;
 import com.testdroid.jenkins.scheduler.TestRunFinishCheckSchedulerFactory;
 import com.testdroid.jenkins.utils.AndroidLocale;
 import com.testdroid.jenkins.utils.EmailHelper;
+import com.testdroid.jenkins.utils.FingerprintCache;
+import com.testdroid.jenkins.utils.RefreshingCache;
+import com.testdroid.jenkins.utils.RetryPolicy;
+import com.testdroid.jenkins.utils.TestRunConfigCache;
+import com.testdroid.jenkins.utils.TestdroidApiUtil;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
 import hudson.model.*;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
+import hudson.tasks.junit.TestResult;
+import hudson.tasks.junit.TestResultAction;
 import hudson.util.ListBoxModel;
 import net.sf.json.JSONObject;
 import org.apache.commons.lang.StringUtils;
@@ -28,11 +37,31 @@ import org.kohsuke.stapler.StaplerRequest;
 import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
 import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -42,6 +71,12 @@ public class RunInCloudBuilder extends AbstractBuilder {
 
     transient private static final String POST_HOOK_URL = "/plugin/testdroid-run-in-cloud/api/json/cloud-webhook";
 
+    // how often results of already finished devices are collected while the test run is running
+    transient private static final long COLLECT_INTERVAL = TimeUnit.SECONDS.toMillis(30);
+
+    // how many parameter changes are sent to the cloud at once
+    transient private static final int PARAMETER_THREADS = 8;
+
     private static final List<String> PAID_ROLES = new ArrayList<String>() {
         {
             add("PRIORITY_SILVER");
@@ -315,10 +350,24 @@ public class RunInCloudBuilder extends AbstractBuilder {
     private String evaluateHookUrl() {
         return isWaitForResults() ?
                 StringUtils.isNotBlank(waitForResultsBlock.getHookURL()) ? waitForResultsBlock.getHookURL()
-                        : String.format("%s%s", Hudson.getInstance().getRootUrl(), POST_HOOK_URL) :
+                        : String.format("%s%s%s", Hudson.getInstance().getRootUrl(), POST_HOOK_URL,
+                        getHookUrlToken()) :
                 null;
     }
 
+    private String getHookUrlToken() {
+        String secret = TestdroidCloudSettings.descriptor().getWebhookSecret();
+        if (StringUtils.isBlank(secret)) {
+            return "";
+        }
+        try {
+            return String.format("?%s=%s", TestdroidCloudSettings.WEBHOOK_TOKEN_PARAMETER,
+                    URLEncoder.encode(secret, StandardCharsets.UTF_8.name()));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
     private String evaluateResultsPath(AbstractBuild<?, ?> build) {
         return isWaitForResults() ?
                 StringUtils.isNotBlank(waitForResultsBlock.getResultsPath()) ? waitForResultsBlock.getResultsPath()
@@ -348,97 +397,75 @@ public class RunInCloudBuilder extends AbstractBuilder {
         String withoutAnnotationFinal = applyMacro(build, listener, withoutAnnotation);
 
         TestdroidCloudSettings.DescriptorImpl descriptor = TestdroidCloudSettings.descriptor();
-        TestdroidCloudSettings plugin = TestdroidCloudSettings.getInstance();
-        boolean releaseDone = false;
 
         try {
-            // make part update and run project "transactional"
-            plugin.getSemaphore().acquire();
-
             if (!verifyParameters(listener)) {
                 return false;
             }
-            APIUser user = descriptor.getUser();
+            // whole build uses one client, even when settings are saved meanwhile
+            TestdroidApiUtil apiUtil = descriptor.getApiUtil();
+            APIUser user = apiUtil.getUser();
 
             final APIProject project = user.getProject(Long.parseLong(this.projectId.trim()));
             if (project == null) {
                 listener.getLogger().println(Messages.CHECK_PROJECT_NAME());
                 return false;
             }
+            Long deviceGroupId = Long.parseLong(this.clusterId);
 
-            updateUserEmailNotifications(user, project);
-
-            APITestRunConfig config = project.getTestRunConfig();
-            config.setAppCrawlerRun(!isFullTest());
-            config.setDeviceLanguageCode(this.language);
-            config.setScheduler(Scheduler.valueOf(this.scheduler));
-            config.setUsedDeviceGroupId(Long.parseLong(this.clusterId));
-            config.setHookURL(evaluateHookUrl());
-            config.setScreenshotDir(this.screenshotsDirectory);
-            config.setInstrumentationRunner(testRunnerFinal);
-            config.setWithoutAnnotation(withoutAnnotationFinal);
-            config.setWithAnnotation(withAnnotationFinal);
-            if (getDescriptor().isPaidUser()) {
-                try {
-                    config.setTimeout(Long.parseLong(testTimeout));
-                } catch (NumberFormatException ignored) {
-                    listener.getLogger().println(String.format(Messages.TEST_TIMEOUT_NOT_NUMERIC_VALUE(), testTimeout));
-                    config.setTimeout(600L);
-                }
-            } else {
-                // 10 minutes for free users
-                config.setTimeout(600L);
-            }
-            setLimitations(build, listener, config);
-            deleteExistingParameters(config);
-            createProvidedParameters(config);
-
-            config.update();
-            printTestJob(project, config, listener);
-            getDescriptor().save();
-
-            final FilePath appFile = new FilePath(launcher.getChannel(), getAbsolutePath(build, appPathFinal));
-
+            // uploads don't touch the project configuration, so they are done before the project gets locked
+            ParallelFileUploader uploader = new ParallelFileUploader(listener);
+            FilePath appFile = new FilePath(launcher.getChannel(), getAbsolutePath(build, appPathFinal));
             listener.getLogger().println(String.format(Messages.UPLOADING_NEW_APPLICATION_S(), appPathFinal));
-
-            Long testFileId = null;
-            Long dataFileId = null;
-            Long appFileId = appFile.act(new MachineIndependentFileUploader(descriptor, project.getId(),
+            uploader.add(appFile, new MachineIndependentFileUploader(descriptor, project.getId(),
                     MachineIndependentFileUploader.FILE_TYPE.APPLICATION, listener));
-            if (appFileId == null) {
-                return false;
-            }
 
             if (isFullTest()) {
                 FilePath testFile = new FilePath(launcher.getChannel(), getAbsolutePath(build, testPathFinal));
-
                 listener.getLogger().println(String.format(Messages.UPLOADING_NEW_INSTRUMENTATION_S(),
                         testPathFinal));
-
-                testFileId = testFile.act(new MachineIndependentFileUploader(descriptor, project.getId(),
+                uploader.add(testFile, new MachineIndependentFileUploader(descriptor, project.getId(),
                         MachineIndependentFileUploader.FILE_TYPE.TEST, listener));
-                if (testFileId == null) {
-                    return false;
-                }
             }
 
             if (isDataFile()) {
                 FilePath dataFile = new FilePath(launcher.getChannel(), getAbsolutePath(build, dataPathFinal));
                 listener.getLogger().println(String.format(Messages.UPLOADING_DATA_FILE_S(), dataPathFinal));
-                dataFileId = dataFile.act(new MachineIndependentFileUploader(descriptor, project.getId(),
+                uploader.add(dataFile, new MachineIndependentFileUploader(descriptor, project.getId(),
                         MachineIndependentFileUploader.FILE_TYPE.DATA, listener));
-                if (dataFileId == null) {
-                    return false;
-                }
             }
-            listener.getLogger().println(Messages.RUNNING_TESTS());
 
+            Map<MachineIndependentFileUploader.FILE_TYPE, Long> fileIds = uploader.upload();
+            if (fileIds == null) {
+                return false;
+            }
+
+            Map<String, Object> configFields = getConfigFields(build, listener, deviceGroupId, testRunnerFinal,
+                    withAnnotationFinal, withoutAnnotationFinal);
             // run project with proper name set in jenkins if it's set
             String finalTestRunName = applyMacro(build, listener, testRunName);
             finalTestRunName = StringUtils.isBlank(finalTestRunName) || finalTestRunName.trim().startsWith("$") ?
                     null : finalTestRunName;
-            APITestRun testRun = project.runWithConfig(finalTestRunName, null, config, appFileId, testFileId,
-                    dataFileId);
+            APITestRun testRun;
+            try {
+                testRun = submitTestRun(apiUtil, user, project, configFields, finalTestRunName, fileIds, listener);
+            } catch (APIException e) {
+                // only a rejected request is known not to have created a test run, others must not be repeated
+                if (!isRejectedRequest(e) || !uploader.invalidateCachedFiles()) {
+                    throw e;
+                }
+                // file ids remembered from earlier builds might not be valid in the cloud anymore, they are
+                // uploaded again without holding the project lock
+                listener.getLogger().println(Messages.CACHED_FILES_REJECTED());
+                LOGGER.log(Level.INFO, Messages.CACHED_FILES_REJECTED(), e);
+                fileIds = uploader.upload();
+                if (fileIds == null) {
+                    return false;
+                }
+                testRun = submitTestRun(apiUtil, user, project, configFields, finalTestRunName, fileIds,
+                        listener);
+            }
+
             String cloudLinkPrefix = descriptor.getPrivateInstanceState() ?
                     StringUtils.isNotBlank(descriptor.getNewCloudUrl()) ?
                             descriptor.getNewCloudUrl() : descriptor
@@ -450,13 +477,13 @@ public class RunInCloudBuilder extends AbstractBuilder {
             RunInCloudEnvInject variable = new RunInCloudEnvInject("CLOUD_LINK", cloudLink);
             build.addAction(variable);
 
-
-            plugin.getSemaphore().release();
-            releaseDone = true;
-
             return waitForResults(project, testRun, build, launcher, listener);
 
         } catch (APIException e) {
+            if (RetryPolicy.isAuthError(e)) {
+                // credentials or permissions changed, the cached user is not valid anymore
+                descriptor.getApiUtil().invalidateUser();
+            }
             listener.getLogger().println(String.format("%s: %s", Messages.ERROR_API(), e.getMessage()));
             LOGGER.log(Level.WARNING, Messages.ERROR_API(), e);
         } catch (IOException e) {
@@ -468,15 +495,95 @@ public class RunInCloudBuilder extends AbstractBuilder {
         } catch (NumberFormatException e) {
             listener.getLogger().println(Messages.NO_DEVICE_GROUP_CHOSEN());
             LOGGER.log(Level.WARNING, Messages.NO_DEVICE_GROUP_CHOSEN());
-        } finally {
-            if (!releaseDone) {
-                plugin.getSemaphore().release();
-            }
         }
 
         return false;
     }
 
+    /**
+     * Applies notification emails, configuration and parameters of this job to the project and starts the test run,
+     * all under the project lock. Never retried, a failed request might still have created the test run.
+     */
+    private APITestRun submitTestRun(
+            TestdroidApiUtil apiUtil, APIUser user, APIProject project, Map<String, Object> configFields,
+            String testRunName, Map<MachineIndependentFileUploader.FILE_TYPE, Long> fileIds, BuildListener listener)
+            throws APIException, InterruptedException {
+        Long appFileId = fileIds.get(MachineIndependentFileUploader.FILE_TYPE.APPLICATION);
+        Long testFileId = fileIds.get(MachineIndependentFileUploader.FILE_TYPE.TEST);
+        Long dataFileId = fileIds.get(MachineIndependentFileUploader.FILE_TYPE.DATA);
+
+        // stateless submission sends a per-run copy of the config, but parameters are still stored per project,
+        // so even a job without parameters must clear those left by other jobs before it runs
+        boolean stateless = TestdroidCloudSettings.descriptor().isStatelessSubmission();
+        // make part update and run project "transactional"
+        ReentrantLock projectLock = TestdroidCloudSettings.getInstance().getProjectLock(project.getId());
+        projectLock.lockInterruptibly();
+        try {
+            updateUserEmailNotifications(user, project);
+
+            // the last applied configuration is known only when it was stored in the cloud, stateless runs need
+            // their own copy
+            TestRunConfigCache configCache = TestRunConfigCache.getInstance();
+            APITestRunConfig cachedConfig = !stateless ? configCache.get(project.getId()) : null;
+            Map<String, Object> configChanges = cachedConfig != null ?
+                    configCache.getChanges(project.getId(), configFields) : null;
+            final APITestRunConfig config;
+            if (configChanges == null) {
+                config = RetryPolicy.DEFAULT.execute("Getting test run configuration", listener.getLogger(),
+                        project::getTestRunConfig);
+                applyConfigFields(config, configFields);
+                if (!stateless) {
+                    RetryPolicy.DEFAULT.execute("Updating test run configuration", listener.getLogger(), () -> {
+                        config.update();
+                        return null;
+                    });
+                    configCache.put(project.getId(), configFields, config);
+                }
+            } else {
+                config = cachedConfig;
+                if (configChanges.isEmpty()) {
+                    LOGGER.log(Level.FINE, "Test run configuration of project {0} not changed", project.getId());
+                } else {
+                    // forgotten until the update succeeds
+                    configCache.invalidate(project.getId());
+                    applyConfigFields(config, configChanges);
+                    if (!stateless) {
+                        RetryPolicy.DEFAULT.execute("Updating test run configuration", listener.getLogger(),
+                                () -> apiUtil.getTestdroidAPIClient().post(String.format(
+                                        "/me/projects/%d/config", project.getId()), toRequestBody(configChanges),
+                                        APITestRunConfig.class));
+                    }
+                    configCache.put(project.getId(), configFields, config);
+                }
+            }
+            synchronizeParameters(project.getId(), config, listener);
+
+            printTestJob(project, config, listener);
+            getDescriptor().save();
+
+            listener.getLogger().println(Messages.RUNNING_TESTS());
+
+            try {
+                return project.runWithConfig(testRunName, null, config, appFileId, testFileId, dataFileId);
+            } catch (APIException e) {
+                // the configuration might have been changed in the cloud meanwhile
+                configCache.invalidate(project.getId());
+                throw e;
+            }
+        } finally {
+            projectLock.unlock();
+        }
+    }
+
+    /**
+     * @return true if the cloud refused the request as invalid, e.g. because of an unknown file id, so it certainly
+     * didn't start a test run
+     */
+    private static boolean isRejectedRequest(APIException e) {
+        Integer status = e.getStatus();
+        return status != null && (status == 400 || status == 404);
+    }
+
     private boolean waitForResults(
             final APIProject project, final APITestRun testRun, AbstractBuild<?, ?> build, Launcher launcher,
             BuildListener listener) {
@@ -487,18 +594,66 @@ public class RunInCloudBuilder extends AbstractBuilder {
             try {
                 boolean testRunToAbort = false;
                 listener.getLogger().println("Waiting for results...");
-                scheduler.schedule(this, project.getId(), testRun.getId());
+                CompletableFuture<APITestRun> finished = scheduler.schedule(project.getId(), testRun.getId());
+                Set<Long> collectedSessions = new HashSet<>();
+                boolean anyCollected = false;
                 try {
-                    synchronized (this) {
-                        wait(waitForResultsBlock.getWaitForResultsTimeout() * 1000);
+                    APITestRun.State state = null;
+                    int timeout = waitForResultsBlock.getWaitForResultsTimeout();
+                    long deadline = timeout > 0 ? System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(timeout)
+                            : Long.MAX_VALUE;
+                    // without collecting, the build just waits for the finish to be signalled, the cloud is not
+                    // asked for device sessions until then
+                    long slice = waitForResultsBlock.isCollectFinishedDevices() ? COLLECT_INTERVAL : Long.MAX_VALUE;
+                    while (true) {
+                        long remaining = deadline - System.currentTimeMillis();
+                        if (remaining <= 0) {
+                            break;
+                        }
+                        try {
+                            APITestRun finishedTestRun = finished.get(Math.min(remaining, slice),
+                                    TimeUnit.MILLISECONDS);
+                            if (finishedTestRun == null) {
+                                // finished by hook which carries only the id
+                                testRun.refresh();
+                                state = testRun.getState();
+                            } else {
+                                state = finishedTestRun.getState();
+                            }
+                            if (state == APITestRun.State.FINISHED) {
+                                break;
+                            }
+                            // early or repeated hook call, the test run goes on
+                            LOGGER.log(Level.INFO, String.format("Test run %d signalled finished in state %s, "
+                                    + "waiting further", testRun.getId(), state));
+                            finished = scheduler.resume(project.getId(), testRun.getId(), finished);
+                            state = null;
+                        } catch (TimeoutException e) {
+                            if (waitForResultsBlock.isCollectFinishedDevices()) {
+                                // download results of devices finished so far, while the others are still running
+                                anyCollected |= collectResults(project, testRun, build, launcher, listener,
+                                        collectedSessions);
+                            }
+                        } catch (ExecutionException e) {
+                            LOGGER.log(Level.FINE, "Test run finish was not signalled", e);
+                            break;
+                        }
                     }
                     scheduler.cancel(project.getId(), testRun.getId());
-                    testRun.refresh();
-                    if (testRun.getState() == APITestRun.State.FINISHED) {
-                        isDownloadOk = launcher.getChannel().call(
-                                new MachineIndependentResultsDownloader(TestdroidCloudSettings.descriptor(), listener,
-                                        project.getId(), testRun.getId(), evaluateResultsPath(build),
-                                        waitForResultsBlock.isDownloadScreenshots()));
+                    if (state == null) {
+                        // not finished in time, or finish was not signalled
+                        testRun.refresh();
+                        state = testRun.getState();
+                    }
+                    if (state == APITestRun.State.FINISHED) {
+                        MachineIndependentResultsDownloader.DownloadSummary summary = launcher.getChannel().call(
+                                createResultsDownloader(project, testRun, build, listener, collectedSessions,
+                                        false));
+                        isDownloadOk = anyCollected || summary.isSuccess();
+                        collectedSessions.addAll(summary.getDownloadedSessions());
+                        if (waitForResultsBlock.isPublishTestResults()) {
+                            publishTestResults(build, launcher, listener, collectedSessions);
+                        }
 
                         if (!isDownloadOk) {
                             listener.getLogger().println(Messages.DOWNLOAD_RESULTS_FAILED());
@@ -539,36 +694,285 @@ public class RunInCloudBuilder extends AbstractBuilder {
         return isDownloadOk;
     }
 
-    private void setLimitations(AbstractBuild<?, ?> build, final BuildListener listener, APITestRunConfig config) {
+    /**
+     * Downloads results of device sessions which finished and were not collected yet.
+     *
+     * @return true if results of any device were downloaded
+     */
+    private boolean collectResults(
+            APIProject project, APITestRun testRun, AbstractBuild<?, ?> build, Launcher launcher,
+            BuildListener listener, Set<Long> collectedSessions) throws InterruptedException {
+        try {
+            MachineIndependentResultsDownloader.DownloadSummary summary = launcher.getChannel().call(
+                    createResultsDownloader(project, testRun, build, listener, collectedSessions, true));
+            collectedSessions.addAll(summary.getDownloadedSessions());
+            return summary.isSuccess();
+        } catch (APIException | IOException e) {
+            // remaining results are downloaded when the test run finishes
+            LOGGER.log(Level.WARNING, Messages.DOWNLOAD_RESULTS_FAILED(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Attaches JUnit reports of given device sessions to the build, which becomes unstable when any test failed.
+     */
+    private void publishTestResults(
+            AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener, Set<Long> deviceSessions)
+            throws InterruptedException {
+        try {
+            TestResult testResult = new FilePath(launcher.getChannel(), evaluateResultsPath(build))
+                    .act(new DeviceTestResultCollector(deviceSessions));
+            if (testResult.getTotalCount() == 0) {
+                listener.getLogger().println(Messages.NO_TEST_RESULTS_FOUND());
+                return;
+            }
+            build.addAction(new TestResultAction(build, testResult, listener));
+            listener.getLogger().println(String.format(Messages.PUBLISHED_S_TEST_RESULTS_S_FAILED(),
+                    testResult.getTotalCount(), testResult.getFailCount()));
+            if (testResult.getFailCount() > 0) {
+                build.setResult(Result.UNSTABLE);
+            }
+        } catch (IOException e) {
+            listener.getLogger().println(String.format("%s: %s", Messages.ERROR_CONNECTION(),
+                    e.getLocalizedMessage()));
+            LOGGER.log(Level.WARNING, Messages.ERROR_CONNECTION(), e);
+        }
+    }
+
+    private MachineIndependentResultsDownloader createResultsDownloader(
+            APIProject project, APITestRun testRun, AbstractBuild<?, ?> build, BuildListener listener,
+            Set<Long> collectedSessions, boolean finishedSessionsOnly) {
+        return new MachineIndependentResultsDownloader(TestdroidCloudSettings.descriptor(), listener,
+                project.getId(), testRun.getId(), evaluateResultsPath(build),
+                waitForResultsBlock.isDownloadScreenshots(), waitForResultsBlock.isExtractResults(),
+                waitForResultsBlock.getResultsIncludes(), waitForResultsBlock.getResultsExcludes(),
+                waitForResultsBlock.isKeepResultsZip(), collectedSessions, finishedSessionsOnly);
+    }
+
+    /**
+     * Returns values of all test run configuration fields set by this builder, keyed by their API names.
+     */
+    private Map<String, Object> getConfigFields(
+            AbstractBuild<?, ?> build, final BuildListener listener, Long deviceGroupId, String testRunnerFinal,
+            String withAnnotationFinal, String withoutAnnotationFinal) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("appCrawlerRun", !isFullTest());
+        result.put("deviceLanguageCode", this.language);
+        result.put("scheduler", Scheduler.valueOf(this.scheduler));
+        result.put("usedDeviceGroupId", deviceGroupId);
+        result.put("hookURL", evaluateHookUrl());
+        result.put("screenshotDir", this.screenshotsDirectory);
+        result.put("instrumentationRunner", testRunnerFinal);
+        result.put("withoutAnnotation", withoutAnnotationFinal);
+        result.put("withAnnotation", withAnnotationFinal);
+        Long timeout;
+        if (getDescriptor().isPaidUser()) {
+            try {
+                timeout = Long.parseLong(testTimeout);
+            } catch (NumberFormatException ignored) {
+                listener.getLogger().println(String.format(Messages.TEST_TIMEOUT_NOT_NUMERIC_VALUE(), testTimeout));
+                timeout = 600L;
+            }
+        } else {
+            // 10 minutes for free users
+            timeout = 600L;
+        }
+        result.put("timeout", timeout);
         if (StringUtils.isNotBlank(testCasesValue)) {
-            config.setLimitationType(APITestRunConfig.LimitationType.valueOf(testCasesSelect));
-            config.setLimitationValue(applyMacro(build, listener, testCasesValue));
+            result.put("limitationType", APITestRunConfig.LimitationType.valueOf(testCasesSelect));
+            result.put("limitationValue", applyMacro(build, listener, testCasesValue));
         } else {
-            config.setLimitationType(null);
-            config.setLimitationValue("");
+            result.put("limitationType", null);
+            result.put("limitationValue", "");
         }
+        return result;
+    }
+
+    private void applyConfigFields(APITestRunConfig config, Map<String, Object> fields) {
+        for (Map.Entry<String, Object> field : fields.entrySet()) {
+            Object value = field.getValue();
+            switch (field.getKey()) {
+                case "appCrawlerRun":
+                    config.setAppCrawlerRun((Boolean) value);
+                    break;
+                case "deviceLanguageCode":
+                    config.setDeviceLanguageCode((String) value);
+                    break;
+                case "scheduler":
+                    config.setScheduler((Scheduler) value);
+                    break;
+                case "usedDeviceGroupId":
+                    config.setUsedDeviceGroupId((Long) value);
+                    break;
+                case "hookURL":
+                    config.setHookURL((String) value);
+                    break;
+                case "screenshotDir":
+                    config.setScreenshotDir((String) value);
+                    break;
+                case "instrumentationRunner":
+                    config.setInstrumentationRunner((String) value);
+                    break;
+                case "withoutAnnotation":
+                    config.setWithoutAnnotation((String) value);
+                    break;
+                case "withAnnotation":
+                    config.setWithAnnotation((String) value);
+                    break;
+                case "timeout":
+                    config.setTimeout((Long) value);
+                    break;
+                case "limitationType":
+                    config.setLimitationType((APITestRunConfig.LimitationType) value);
+                    break;
+                case "limitationValue":
+                    config.setLimitationValue((String) value);
+                    break;
+                default:
+                    throw new IllegalArgumentException(field.getKey());
+            }
+        }
+    }
+
+    /**
+     * Converts configuration fields to the form accepted by the config endpoint.
+     */
+    private static Map<String, Object> toRequestBody(Map<String, Object> fields) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        for (Map.Entry<String, Object> field : fields.entrySet()) {
+            Object value = field.getValue();
+            result.put(field.getKey(), value instanceof Enum ? ((Enum<?>) value).name() : value);
+        }
+        return result;
     }
 
-    private void deleteExistingParameters(APITestRunConfig config) throws APIException {
-        List<APITestRunParameter> parameters = config
-                .getParameters(new APIQueryBuilder().limit(Integer.MAX_VALUE)).getEntity().getData();
-        for (APITestRunParameter parameter : parameters) {
-            config.deleteParameter(parameter.getId());
+    /**
+     * Makes parameters of the project equal to the provided ones. Only parameters which are missing or have a
+     * different value are touched, deletes go first so that changed keys can be created again.
+     */
+    private void synchronizeParameters(Long projectId, APITestRunConfig config, BuildListener listener)
+            throws APIException, InterruptedException {
+        Map<String, String> provided = getProvidedParameters();
+        String fingerprintKey = String.format("parameters:%d", projectId);
+        List<String> stateParts = new ArrayList<>();
+        for (Map.Entry<String, String> parameter : provided.entrySet()) {
+            stateParts.add(parameter.getKey());
+            stateParts.add(parameter.getValue());
         }
+        String state = FingerprintCache.toState(stateParts);
+        FingerprintCache fingerprintCache = FingerprintCache.getInstance();
+        if (fingerprintCache.isSynchronized(fingerprintKey, state)) {
+            LOGGER.log(Level.FINE, "Test run parameters of project {0} not changed", projectId);
+            return;
+        }
+        // forgotten until the synchronization succeeds
+        fingerprintCache.invalidate(fingerprintKey);
+
+        // a retried create might have left a duplicate, which the next pass finds and deletes
+        if (applyParameters(projectId, provided, config, listener)
+                && applyParameters(projectId, provided, config, listener)) {
+            // still not sure, not remembered so the cloud is checked again next time
+            return;
+        }
+        fingerprintCache.put(fingerprintKey, state);
     }
 
-    private void createProvidedParameters(APITestRunConfig config) throws APIException {
+    /**
+     * Deletes parameters which are not provided, changed or duplicate and creates the missing ones.
+     *
+     * @return true if any create was retried, so a duplicate might exist
+     */
+    private boolean applyParameters(
+            Long projectId, Map<String, String> provided, APITestRunConfig config, BuildListener listener)
+            throws APIException, InterruptedException {
+        List<APITestRunParameter> existing = RetryPolicy.DEFAULT.execute("Getting test run parameters",
+                listener.getLogger(), () -> config.getParameters(new APIQueryBuilder().limit(Integer.MAX_VALUE))
+                        .getEntity().getData());
+        List<Callable<Void>> deletes = new ArrayList<>();
+        Map<String, String> creates = new LinkedHashMap<>(provided);
+        for (APITestRunParameter parameter : existing) {
+            if (provided.containsKey(parameter.getKey())
+                    && provided.get(parameter.getKey()).equals(parameter.getValue())
+                    && creates.remove(parameter.getKey()) != null) {
+                continue;
+            }
+            // not provided, changed or duplicate
+            deletes.add(() -> RetryPolicy.DEFAULT.execute("Deleting test run parameter", listener.getLogger(),
+                    () -> {
+                        try {
+                            config.deleteParameter(parameter.getId());
+                        } catch (APIException e) {
+                            // deleted by an earlier attempt whose response was lost
+                            if (!Integer.valueOf(404).equals(e.getStatus())) {
+                                throw e;
+                            }
+                        }
+                        return null;
+                    }));
+        }
+        AtomicBoolean createRetried = new AtomicBoolean();
+        List<Callable<Void>> createCalls = new ArrayList<>();
+        for (Map.Entry<String, String> parameter : creates.entrySet()) {
+            AtomicInteger attempts = new AtomicInteger();
+            createCalls.add(() -> RetryPolicy.DEFAULT.execute("Creating test run parameter", listener.getLogger(),
+                    () -> {
+                        if (attempts.incrementAndGet() > 1) {
+                            // the failed attempt might have created the parameter and only its response got lost
+                            createRetried.set(true);
+                        }
+                        config.createParameter(parameter.getKey(), parameter.getValue());
+                        return null;
+                    }));
+        }
+        LOGGER.log(Level.FINE, "Deleting {0} and creating {1} test run parameters of project {2}",
+                new Object[]{deletes.size(), createCalls.size(), projectId});
+        invokeParameterCalls(deletes);
+        invokeParameterCalls(createCalls);
+        return createRetried.get();
+    }
+
+    /**
+     * Runs given API calls concurrently and waits for all of them.
+     */
+    private static void invokeParameterCalls(List<Callable<Void>> calls) throws APIException, InterruptedException {
+        if (calls.isEmpty()) {
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(PARAMETER_THREADS, calls.size()));
+        try {
+            for (Future<Void> future : executor.invokeAll(calls)) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof APIException) {
+                        throw (APIException) e.getCause();
+                    }
+                    throw new APIException(e.getCause().toString());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Parses key value pairs in form key1:value1;key2:value2, values might contain colons.
+     */
+    private Map<String, String> getProvidedParameters() {
+        Map<String, String> result = new LinkedHashMap<>();
         if (keyValuePairs != null) {
             String[] splitKeyValuePairs = keyValuePairs.split(";");
             for (String splitKeyValuePair : splitKeyValuePairs) {
                 if (StringUtils.isNotBlank(splitKeyValuePair)) {
-                    String[] splitKeyValue = splitKeyValuePair.split(":");
+                    String[] splitKeyValue = splitKeyValuePair.split(":", 2);
                     if (splitKeyValue.length == 2) {
-                        config.createParameter(splitKeyValue[0], splitKeyValue[1]);
+                        result.put(splitKeyValue[0], splitKeyValue[1]);
                     }
                 }
             }
         }
+        return result;
     }
 
     private void printTestJob(APIProject project, APITestRunConfig config, BuildListener listener) {
@@ -599,37 +1003,52 @@ public class RunInCloudBuilder extends AbstractBuilder {
         return (DescriptorImpl) super.getDescriptor();
     }
 
-    private void updateUserEmailNotifications(APIUser user, APIProject project) {
+    /**
+     * Called under the project lock, emails of the user are shared by all projects so they have a lock of their own.
+     */
+    private void updateUserEmailNotifications(APIUser user, APIProject project) throws InterruptedException {
+        //set emails per user
+        ReentrantLock userLock = TestdroidCloudSettings.getInstance().getUserLock();
+        userLock.lockInterruptibly();
         try {
-            //set emails per user
-            APINotificationEmail.Type neType = APINotificationEmail.Type.valueOf(TestdroidCloudSettings.descriptor()
-                    .getNotificationEmailType());
-            List<String> emailAddressesToSet = EmailHelper.getEmailAddresses(TestdroidCloudSettings.descriptor()
-                    .getNotificationEmail());
-            List<APINotificationEmail> currentEmails = user.getNotificationEmails().getEntity().getData();
-            //remove exceeded emails and update type of existed ones
-            for (APINotificationEmail email : currentEmails) {
-                if (!emailAddressesToSet.contains(email.getEmail())) {
-                    email.delete();
-                } else if (!email.getType().equals(neType)) {
-                    email.setType(neType);
-                    email.refresh();
-                }
-            }
-            //add missed emails
-            for (String email : emailAddressesToSet) {
-                if (!isNotificationEmailContained(currentEmails, email)) {
-                    user.createNotificationEmail(email, neType);
-                }
-            }
+            synchronizeNotificationEmails(String.format("emails:user:%d", user.getId()),
+                    TestdroidCloudSettings.descriptor().getNotificationEmailType(),
+                    TestdroidCloudSettings.descriptor().getNotificationEmail(),
+                    () -> user.getNotificationEmails().getEntity().getData(), user::createNotificationEmail);
+        } finally {
+            userLock.unlock();
+        }
+        //set emails per project
+        synchronizeNotificationEmails(String.format("emails:project:%d", project.getId()), notificationEmailType,
+                notificationEmail, () -> project.getNotificationEmails().getEntity().getData(),
+                project::createNotificationEmail);
+    }
 
-            //set emails per project
-            neType = APINotificationEmail.Type.valueOf(notificationEmailType);
-            emailAddressesToSet = EmailHelper.getEmailAddresses(notificationEmail);
-            currentEmails = project.getNotificationEmails().getEntity().getData();
+    /**
+     * Makes notification emails in the cloud equal to the configured ones. Nothing is asked from the cloud when the
+     * same configuration was synchronized recently.
+     */
+    private void synchronizeNotificationEmails(
+            String fingerprintKey, String type, String addresses,
+            RetryPolicy.RetryableCall<List<APINotificationEmail>, APIException> currentEmailsGetter,
+            NotificationEmailCreator creator) {
+        APINotificationEmail.Type neType = APINotificationEmail.Type.valueOf(type);
+        Set<String> emailAddressesToSet = new LinkedHashSet<>(EmailHelper.getEmailAddresses(addresses));
+        List<String> stateParts = new ArrayList<>();
+        stateParts.add(neType.name());
+        stateParts.addAll(new TreeSet<>(emailAddressesToSet));
+        String state = FingerprintCache.toState(stateParts);
+        FingerprintCache fingerprintCache = FingerprintCache.getInstance();
+        if (fingerprintCache.isSynchronized(fingerprintKey, state)) {
+            return;
+        }
+        // forgotten until the synchronization succeeds
+        fingerprintCache.invalidate(fingerprintKey);
+        try {
+            Set<String> missedEmails = new LinkedHashSet<>(emailAddressesToSet);
             //remove exceeded emails and update type of existed ones
-            for (APINotificationEmail email : currentEmails) {
-                if (!emailAddressesToSet.contains(email.getEmail())) {
+            for (APINotificationEmail email : currentEmailsGetter.call()) {
+                if (!missedEmails.remove(email.getEmail())) {
                     email.delete();
                 } else if (!email.getType().equals(neType)) {
                     email.setType(neType);
@@ -637,23 +1056,18 @@ public class RunInCloudBuilder extends AbstractBuilder {
                 }
             }
             //add missed emails
-            for (String email : emailAddressesToSet) {
-                if (!isNotificationEmailContained(currentEmails, email)) {
-                    project.createNotificationEmail(email, neType);
-                }
+            for (String email : missedEmails) {
+                creator.create(email, neType);
             }
+            fingerprintCache.put(fingerprintKey, state);
         } catch (APIException e) {
-            LOGGER.log(Level.WARNING, Messages.ERROR_API());
+            LOGGER.log(Level.WARNING, Messages.ERROR_API(), e);
         }
     }
 
-    private boolean isNotificationEmailContained(List<APINotificationEmail> notificationEmails, String searchEmail) {
-        for (APINotificationEmail notificationEmail : notificationEmails) {
-            if (notificationEmail.getEmail().equals(searchEmail)) {
-                return true;
-            }
-        }
-        return false;
+    private interface NotificationEmailCreator {
+
+        APINotificationEmail create(String email, APINotificationEmail.Type type) throws APIException;
     }
 
     public static class WaitForResultsBlock {
@@ -670,17 +1084,37 @@ public class RunInCloudBuilder extends AbstractBuilder {
 
         private Integer waitForResultsTimeout;
 
+        private boolean extractResults;
+
+        private String resultsIncludes;
+
+        private String resultsExcludes;
+
+        private boolean keepResultsZip;
+
+        private boolean publishTestResults;
+
+        private boolean collectFinishedDevices;
+
         @DataBoundConstructor
         public WaitForResultsBlock(
                 String testRunStateCheckMethod,
                 String hookURL, String waitForResultsTimeout, String resultsPath, boolean downloadScreenshots,
-                boolean forceFinishAfterBreak) {
+                boolean forceFinishAfterBreak, boolean extractResults, String resultsIncludes,
+                String resultsExcludes, boolean keepResultsZip, boolean publishTestResults,
+                boolean collectFinishedDevices) {
             this.testRunStateCheckMethod = TestRunStateCheckMethod.valueOf(testRunStateCheckMethod);
             this.hookURL = hookURL;
             this.resultsPath = resultsPath;
             this.downloadScreenshots = downloadScreenshots;
             this.forceFinishAfterBreak = forceFinishAfterBreak;
             this.waitForResultsTimeout = NumberUtils.toInt(waitForResultsTimeout);
+            this.extractResults = extractResults;
+            this.resultsIncludes = resultsIncludes;
+            this.resultsExcludes = resultsExcludes;
+            this.keepResultsZip = keepResultsZip;
+            this.publishTestResults = publishTestResults;
+            this.collectFinishedDevices = collectFinishedDevices;
         }
 
         public String getHookURL() {
@@ -736,6 +1170,54 @@ public class RunInCloudBuilder extends AbstractBuilder {
         public void setForceFinishAfterBreak(boolean forceFinishAfterBreak) {
             this.forceFinishAfterBreak = forceFinishAfterBreak;
         }
+
+        public boolean isExtractResults() {
+            return extractResults;
+        }
+
+        public void setExtractResults(boolean extractResults) {
+            this.extractResults = extractResults;
+        }
+
+        public String getResultsIncludes() {
+            return resultsIncludes;
+        }
+
+        public void setResultsIncludes(String resultsIncludes) {
+            this.resultsIncludes = resultsIncludes;
+        }
+
+        public String getResultsExcludes() {
+            return resultsExcludes;
+        }
+
+        public void setResultsExcludes(String resultsExcludes) {
+            this.resultsExcludes = resultsExcludes;
+        }
+
+        public boolean isKeepResultsZip() {
+            return keepResultsZip;
+        }
+
+        public void setKeepResultsZip(boolean keepResultsZip) {
+            this.keepResultsZip = keepResultsZip;
+        }
+
+        public boolean isPublishTestResults() {
+            return publishTestResults;
+        }
+
+        public void setPublishTestResults(boolean publishTestResults) {
+            this.publishTestResults = publishTestResults;
+        }
+
+        public boolean isCollectFinishedDevices() {
+            return collectFinishedDevices;
+        }
+
+        public void setCollectFinishedDevices(boolean collectFinishedDevices) {
+            this.collectFinishedDevices = collectFinishedDevices;
+        }
     }
 
     @Extension
@@ -743,6 +1225,18 @@ public class RunInCloudBuilder extends AbstractBuilder {
 
         private static final long serialVersionUID = 1L;
 
+        // how often lookups for the job configuration page are refreshed in the background
+        private static final long LOOKUP_REFRESH_INTERVAL = TimeUnit.MINUTES.toMillis(5);
+
+        private static final RefreshingCache<List<ListBoxModel.Option>> PROJECTS = new RefreshingCache<>(
+                "projects", LOOKUP_REFRESH_INTERVAL, DescriptorImpl::loadProjects);
+
+        private static final RefreshingCache<List<ListBoxModel.Option>> DEVICE_GROUPS = new RefreshingCache<>(
+                "device groups", LOOKUP_REFRESH_INTERVAL, DescriptorImpl::loadDeviceGroups);
+
+        private static final RefreshingCache<Boolean> PAID_USER = new RefreshingCache<>(
+                "paid roles", LOOKUP_REFRESH_INTERVAL, DescriptorImpl::loadPaidUser);
+
         public DescriptorImpl() {
             super(RunInCloudBuilder.class);
             load();
@@ -774,38 +1268,16 @@ public class RunInCloudBuilder extends AbstractBuilder {
         }
 
         public boolean isPaidUser() {
-            boolean result = false;
-            if (isAuthenticated()) {
-                try {
-                    Date now = new Date();
-                    APIUser user = TestdroidCloudSettings.descriptor().getUser();
-                    for (APIRole role : user.getRoles()) {
-                        if (PAID_ROLES.contains(role.getName())
-                                && (role.getExpireTime() == null || role.getExpireTime().after(now))) {
-                            result = true;
-                        }
-                    }
-                } catch (APIException e) {
-                    LOGGER.log(Level.WARNING, Messages.ERROR_API());
-                }
-
-            }
-            return result;
-        }
-
-        public ListBoxModel doFillProjectIdItems() {
-            ListBoxModel projects = new ListBoxModel();
             try {
-                APIUser user = TestdroidCloudSettings.descriptor().getUser();
-                List<APIProject> list = user.getProjectsResource(new APIQueryBuilder().limit(Integer.MAX_VALUE))
-                        .getEntity().getData();
-                for (APIProject project : list) {
-                    projects.add(project.getName(), project.getId().toString());
-                }
+                return PAID_USER.get();
             } catch (APIException e) {
                 LOGGER.log(Level.WARNING, Messages.ERROR_API());
+                return false;
             }
-            return projects;
+        }
+
+        public ListBoxModel doFillProjectIdItems() {
+            return getItems(PROJECTS);
         }
 
         public ListBoxModel doFillSchedulerItems() {
@@ -817,22 +1289,57 @@ public class RunInCloudBuilder extends AbstractBuilder {
         }
 
         public ListBoxModel doFillClusterIdItems() {
-            ListBoxModel deviceGroups = new ListBoxModel();
+            return getItems(DEVICE_GROUPS);
+        }
+
+        private static ListBoxModel getItems(RefreshingCache<List<ListBoxModel.Option>> cache) {
+            ListBoxModel items = new ListBoxModel();
             try {
-                APIUser user = TestdroidCloudSettings.descriptor().getUser();
-                List<APIDeviceGroup> list = user.getDeviceGroupsResource(new APIDeviceGroupQueryBuilder().withPublic()
-                        .limit(Integer.MAX_VALUE)).getEntity().getData();
-                for (APIDeviceGroup deviceGroup : list) {
-                    deviceGroups.add(String.format("%s (%d device(s))", deviceGroup.getDisplayName(),
-                            deviceGroup.getDeviceCount()), deviceGroup.getId().toString());
+                // options are copied, the model returned to the page gets modified
+                for (ListBoxModel.Option option : cache.get()) {
+                    items.add(option.name, option.value);
                 }
             } catch (APIException e) {
                 LOGGER.log(Level.WARNING, Messages.ERROR_API());
             }
+            return items;
+        }
+
+        private static List<ListBoxModel.Option> loadProjects() throws APIException {
+            List<ListBoxModel.Option> projects = new ArrayList<>();
+            APIUser user = TestdroidCloudSettings.descriptor().getUser();
+            List<APIProject> list = user.getProjectsResource(new APIQueryBuilder().limit(Integer.MAX_VALUE))
+                    .getEntity().getData();
+            for (APIProject project : list) {
+                projects.add(new ListBoxModel.Option(project.getName(), project.getId().toString()));
+            }
+            return projects;
+        }
 
+        private static List<ListBoxModel.Option> loadDeviceGroups() throws APIException {
+            List<ListBoxModel.Option> deviceGroups = new ArrayList<>();
+            APIUser user = TestdroidCloudSettings.descriptor().getUser();
+            List<APIDeviceGroup> list = user.getDeviceGroupsResource(new APIDeviceGroupQueryBuilder().withPublic()
+                    .limit(Integer.MAX_VALUE)).getEntity().getData();
+            for (APIDeviceGroup deviceGroup : list) {
+                deviceGroups.add(new ListBoxModel.Option(String.format("%s (%d device(s))",
+                        deviceGroup.getDisplayName(), deviceGroup.getDeviceCount()), deviceGroup.getId().toString()));
+            }
             return deviceGroups;
         }
 
+        private static boolean loadPaidUser() throws APIException {
+            Date now = new Date();
+            APIUser user = TestdroidCloudSettings.descriptor().getUser();
+            for (APIRole role : user.getRoles()) {
+                if (PAID_ROLES.contains(role.getName())
+                        && (role.getExpireTime() == null || role.getExpireTime().after(now))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
         public ListBoxModel doFillLanguageItems() {
             ListBoxModel language = new ListBoxModel();
             for (Locale locale : AndroidLocale.LOCALES) {
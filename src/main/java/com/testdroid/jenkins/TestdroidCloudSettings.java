@@ -1,11 +1,14 @@
 package com.testdroid.jenkins;
 
-import com.testdroid.api.APIClient;
 import com.testdroid.api.APIException;
 import com.testdroid.api.model.APINotificationEmail;
 import com.testdroid.api.model.APIUser;
-import com.testdroid.jenkins.utils.ResultWaiter;
+import com.testdroid.jenkins.scheduler.TestRunCompletionDispatcher;
+import com.testdroid.jenkins.utils.FingerprintCache;
+import com.testdroid.jenkins.utils.RefreshingCache;
+import com.testdroid.jenkins.utils.TestRunConfigCache;
 import com.testdroid.jenkins.utils.TestdroidApiUtil;
+import com.testdroid.jenkins.utils.UploadCache;
 import hudson.Extension;
 import hudson.Plugin;
 import hudson.model.*;
@@ -14,6 +17,7 @@ import hudson.util.ListBoxModel;
 import hudson.util.Secret;
 import net.sf.json.JSONObject;
 import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
@@ -21,8 +25,13 @@ import org.kohsuke.stapler.export.Exported;
 import org.kohsuke.stapler.export.ExportedBean;
 
 import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.util.concurrent.Semaphore;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -43,11 +52,23 @@ public class TestdroidCloudSettings extends Plugin implements Describable<Testdr
 
     public static final String CLOUD_ENDPOINT = "https://cloud.testdroid.com";
 
+    public static final String WEBHOOK_TOKEN_PARAMETER = "token";
+
+    public static final int DEFAULT_UPLOAD_CHUNK_SIZE = 8;
+
+    public static final int DEFAULT_POLLING_FLOOR = 10;
+
+    public static final int DEFAULT_POLLING_CEILING = 300;
+
+    public static final int DEFAULT_DOWNLOAD_THREADS = 4;
+
     private static final Logger LOGGER = Logger.getLogger(TestdroidCloudSettings.class.getName());
 
     private static DescriptorImpl DESCRIPTOR;
 
-    private transient Semaphore semaphore = new Semaphore(1);
+    private transient ConcurrentMap<Long, ReentrantLock> projectLocks = new ConcurrentHashMap<>();
+
+    private transient ReentrantLock userLock = new ReentrantLock();
 
     public TestdroidCloudSettings() {
         super();
@@ -71,8 +92,25 @@ public class TestdroidCloudSettings extends Plugin implements Describable<Testdr
         return new TestdroidRunInCloudApi(this);
     }
 
-    public Semaphore getSemaphore() {
-        return semaphore;
+    /**
+     * Returns the lock guarding the shared test run configuration of given project. Builds against different
+     * projects never wait for each other.
+     *
+     * @param projectId cloud project id
+     * @return lock of the project
+     */
+    public ReentrantLock getProjectLock(Long projectId) {
+        return projectLocks.computeIfAbsent(projectId, id -> new ReentrantLock());
+    }
+
+    /**
+     * Returns the lock guarding settings of the cloud user shared by builds of all projects, e.g. notification
+     * emails.
+     *
+     * @return lock of the user
+     */
+    public ReentrantLock getUserLock() {
+        return userLock;
     }
 
     @Override
@@ -114,8 +152,31 @@ public class TestdroidCloudSettings extends Plugin implements Describable<Testdr
 
         private String proxyUser;
 
+        private boolean statelessSubmission;
+
+        private Integer uploadCacheTtl = UploadCache.DEFAULT_TTL_MINUTES;
+
+        private Integer uploadCacheMaxEntries = UploadCache.DEFAULT_MAX_ENTRIES;
+
+        private String chunkedUploadUrl;
+
+        private String chunkedUploadToken;
+
+        private String webhookSecret;
+
+        private Integer downloadThreads = DEFAULT_DOWNLOAD_THREADS;
+
+        private Integer screenshotRetention;
+
+        private Integer uploadChunkSize = DEFAULT_UPLOAD_CHUNK_SIZE;
+
+        private Integer pollingFloor = DEFAULT_POLLING_FLOOR;
+
+        private Integer pollingCeiling = DEFAULT_POLLING_CEILING;
+
         public DescriptorImpl() {
             load();
+            applyCacheLimits();
         }
 
         @Override
@@ -127,10 +188,22 @@ public class TestdroidCloudSettings extends Plugin implements Describable<Testdr
         public void save() {
             this.password = Secret.fromString(this.password).getEncryptedValue();
             this.proxyPassword = Secret.fromString(this.proxyPassword).getEncryptedValue();
-            TestdroidApiUtil.clean();
+            this.webhookSecret = Secret.fromString(this.webhookSecret).getEncryptedValue();
+            this.chunkedUploadToken = Secret.fromString(this.chunkedUploadToken).getEncryptedValue();
+            // running builds finish with the client they started with
+            TestdroidApiUtil.rotate(email, getPassword(), cloudUrl, privateInstanceState, noCheckCertificate, isProxy,
+                    proxyHost, proxyPort, proxyUser, getProxyPassword());
+            TestRunConfigCache.getInstance().clear();
+            FingerprintCache.getInstance().clear();
+            RefreshingCache.invalidateAll();
+            applyCacheLimits();
             super.save();
         }
 
+        private void applyCacheLimits() {
+            UploadCache.getInstance().setLimits(getUploadCacheTtl(), getUploadCacheMaxEntries());
+        }
+
         @Override
         public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
             req.bindParameters(this);
@@ -139,28 +212,26 @@ public class TestdroidCloudSettings extends Plugin implements Describable<Testdr
             return true;
         }
 
-        private APIClient getTestdroidAPIClient() {
-            return TestdroidApiUtil.isInitialized()
-                    ? TestdroidApiUtil.getInstance().getTestdroidAPIClient()
+        /**
+         * @return API client registry entry for current settings. Callers doing several calls should keep it, so they
+         * are not switched to different credentials halfway
+         */
+        public TestdroidApiUtil getApiUtil() {
+            TestdroidApiUtil current = TestdroidApiUtil.getInstance();
+            return current != null
+                    ? current
                     : TestdroidApiUtil.init(
                     email, getPassword(), cloudUrl, privateInstanceState,
                     noCheckCertificate, isProxy, proxyHost, proxyPort,
-                    proxyUser, getProxyPassword()).getTestdroidAPIClient();
+                    proxyUser, getProxyPassword());
         }
 
+        /**
+         * @return authenticated user, cached for a short time and recreated together with the client when the
+         * cloud rejects it
+         */
         public APIUser getUser() throws APIException {
-            APIUser user;
-
-            try {
-                user = getTestdroidAPIClient().me();
-            } catch (APIException e) {
-                LOGGER.log(Level.INFO, "ApiException occurred during get user from client. Client will be recreated");
-                //if sth happen to cached client(probably problem with refreshing access token) client is recreated
-                TestdroidApiUtil.clean();
-                user = getTestdroidAPIClient().me();
-            }
-
-            return user;
+            return getApiUtil().getUser();
         }
 
         @Exported
@@ -171,9 +242,16 @@ public class TestdroidCloudSettings extends Plugin implements Describable<Testdr
                 @QueryParameter String proxyUser, @QueryParameter String proxyPassword) {
 
             FormValidation validation = null;
-            TestdroidApiUtil.clean();
+            // the form may carry secrets still encrypted, the way they were rendered
+            String plainPassword = Secret.fromString(password).getPlainText();
+            String plainProxyPassword = Secret.fromString(proxyPassword).getPlainText();
+            // checked with a client of its own, the current one stays in use by running builds until saved
+            TestdroidApiUtil candidate = TestdroidApiUtil.get(email, plainPassword, cloudUrl, privateInstanceState,
+                    noCheckCertificate, isProxy, proxyHost, proxyPort, proxyUser, plainProxyPassword);
 
             try {
+                APIUser user = candidate.getTestdroidAPIClient().me();
+
                 this.email = email;
                 this.password = password;
                 this.cloudUrl = cloudUrl;
@@ -188,8 +266,6 @@ public class TestdroidCloudSettings extends Plugin implements Describable<Testdr
                     this.proxyPassword = proxyPassword;
                 }
 
-                APIUser user = getTestdroidAPIClient().me();
-
                 save();
 
                 if (user != null) {
@@ -197,8 +273,8 @@ public class TestdroidCloudSettings extends Plugin implements Describable<Testdr
                 }
             } catch (APIException e) {
                 validation = FormValidation.error(e.getLocalizedMessage());
-                this.password = null;
-                load();
+                // settings stay as they were, the client of rejected credentials is dropped unless it is current
+                TestdroidApiUtil.evict(candidate);
                 LOGGER.log(Level.WARNING, Messages.ERROR_API());
             }
 
@@ -331,6 +407,137 @@ public class TestdroidCloudSettings extends Plugin implements Describable<Testdr
             this.proxyPassword = proxyPassword;
         }
 
+        @Exported
+        public boolean isStatelessSubmission() {
+            return statelessSubmission;
+        }
+
+        @Exported
+        public void setStatelessSubmission(boolean statelessSubmission) {
+            this.statelessSubmission = statelessSubmission;
+        }
+
+        @Exported
+        public Integer getUploadCacheTtl() {
+            return uploadCacheTtl != null ? uploadCacheTtl : UploadCache.DEFAULT_TTL_MINUTES;
+        }
+
+        @Exported
+        public void setUploadCacheTtl(Integer uploadCacheTtl) {
+            this.uploadCacheTtl = uploadCacheTtl;
+        }
+
+        @Exported
+        public Integer getUploadCacheMaxEntries() {
+            return uploadCacheMaxEntries != null ? uploadCacheMaxEntries : UploadCache.DEFAULT_MAX_ENTRIES;
+        }
+
+        @Exported
+        public void setUploadCacheMaxEntries(Integer uploadCacheMaxEntries) {
+            this.uploadCacheMaxEntries = uploadCacheMaxEntries;
+        }
+
+        @Exported
+        public String getChunkedUploadUrl() {
+            return chunkedUploadUrl;
+        }
+
+        @Exported
+        public void setChunkedUploadUrl(String chunkedUploadUrl) {
+            this.chunkedUploadUrl = chunkedUploadUrl;
+        }
+
+        /**
+         * Returns chunked upload token in decrypted form
+         */
+        @Exported
+        public String getChunkedUploadToken() {
+            return Secret.fromString(this.chunkedUploadToken).getPlainText();
+        }
+
+        @Exported
+        public void setChunkedUploadToken(String chunkedUploadToken) {
+            this.chunkedUploadToken = chunkedUploadToken;
+        }
+
+        /**
+         * Returns size of one upload chunk in megabytes
+         */
+        @Exported
+        public Integer getUploadChunkSize() {
+            return uploadChunkSize != null && uploadChunkSize > 0 ? uploadChunkSize : DEFAULT_UPLOAD_CHUNK_SIZE;
+        }
+
+        @Exported
+        public void setUploadChunkSize(Integer uploadChunkSize) {
+            this.uploadChunkSize = uploadChunkSize;
+        }
+
+        /**
+         * Returns minimal delay between adaptive test run state checks in seconds
+         */
+        @Exported
+        public Integer getPollingFloor() {
+            return pollingFloor != null && pollingFloor > 0 ? pollingFloor : DEFAULT_POLLING_FLOOR;
+        }
+
+        @Exported
+        public void setPollingFloor(Integer pollingFloor) {
+            this.pollingFloor = pollingFloor;
+        }
+
+        /**
+         * Returns maximal delay between adaptive test run state checks in seconds
+         */
+        @Exported
+        public Integer getPollingCeiling() {
+            return pollingCeiling != null && pollingCeiling > 0 ? pollingCeiling : DEFAULT_POLLING_CEILING;
+        }
+
+        @Exported
+        public void setPollingCeiling(Integer pollingCeiling) {
+            this.pollingCeiling = pollingCeiling;
+        }
+
+        /**
+         * Returns number of devices whose results are downloaded at the same time
+         */
+        @Exported
+        public Integer getDownloadThreads() {
+            return downloadThreads != null && downloadThreads > 0 ? downloadThreads : DEFAULT_DOWNLOAD_THREADS;
+        }
+
+        @Exported
+        public void setDownloadThreads(Integer downloadThreads) {
+            this.downloadThreads = downloadThreads;
+        }
+
+        /**
+         * Returns days unused screenshots are kept in the deduplicated screenshot store, 0 when the store is off
+         */
+        @Exported
+        public Integer getScreenshotRetention() {
+            return screenshotRetention != null && screenshotRetention > 0 ? screenshotRetention : 0;
+        }
+
+        @Exported
+        public void setScreenshotRetention(Integer screenshotRetention) {
+            this.screenshotRetention = screenshotRetention;
+        }
+
+        /**
+         * Returns hook URL secret in decrypted form
+         */
+        @Exported
+        public String getWebhookSecret() {
+            return Secret.fromString(this.webhookSecret).getPlainText();
+        }
+
+        @Exported
+        public void setWebhookSecret(String webhookSecret) {
+            this.webhookSecret = webhookSecret;
+        }
+
         @Exported
         public String getNotificationEmail() {
             return notificationEmail;
@@ -360,10 +567,40 @@ public class TestdroidCloudSettings extends Plugin implements Describable<Testdr
 
         @Override
         public void doJson(StaplerRequest req, StaplerResponse resp) throws IOException, ServletException {
-            LOGGER.log(Level.INFO, "rest call");
-            if (req.getMethod().toLowerCase().equals("post")) {
-                ResultWaiter.getInstance().notifyWaitingObject(Long.parseLong(req.getParameter("testRunId")));
+            LOGGER.log(Level.FINE, "rest call");
+            if (!req.getMethod().equalsIgnoreCase("post")) {
+                return;
             }
+            String secret = descriptor().getWebhookSecret();
+            if (StringUtils.isNotBlank(secret) && !isTokenValid(secret, req.getParameter(WEBHOOK_TOKEN_PARAMETER))) {
+                LOGGER.log(Level.WARNING, String.format("Rejected hook call with invalid token from %s",
+                        req.getRemoteAddr()));
+                resp.sendError(HttpServletResponse.SC_FORBIDDEN);
+                return;
+            }
+            String testRunId = req.getParameter("testRunId");
+            Long parsedTestRunId = null;
+            if (NumberUtils.isDigits(testRunId)) {
+                try {
+                    parsedTestRunId = Long.parseLong(testRunId);
+                } catch (NumberFormatException e) {
+                    // too many digits for a long
+                }
+            }
+            if (parsedTestRunId == null) {
+                resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid testRunId");
+                return;
+            }
+            if (TestRunCompletionDispatcher.getInstance().dispatch(parsedTestRunId)) {
+                resp.setStatus(HttpServletResponse.SC_ACCEPTED);
+            } else {
+                LOGGER.log(Level.FINE, String.format("Ignored repeated hook call for test run %s", testRunId));
+            }
+        }
+
+        private boolean isTokenValid(String secret, String token) {
+            return token != null && MessageDigest.isEqual(secret.getBytes(StandardCharsets.UTF_8),
+                    token.getBytes(StandardCharsets.UTF_8));
         }
     }
 }
@@ -12,5 +12,7 @@ package com.testdroid.jenkins.model;
  */
 public enum TestRunStateCheckMethod {
     HOOK_URL,
-    API_CALL
+    API_CALL,
+    ADAPTIVE_API_CALL,
+    HYBRID
 }
@@ -0,0 +1,306 @@
+package com.testdroid.jenkins.remotesupport;
+
+import com.testdroid.api.APIException;
+import com.testdroid.jenkins.Messages;
+import net.sf.json.JSONObject;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.HttpRetryException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Testdroid Run in Cloud plugin
+ *
+ * https://git@github.com/jenkinsci/testdroid-run-in-cloud
+ *
+ * Usage:
+ * Uploads a file in chunks to a resumable upload endpoint. Upload session is started with a POST returning session
+ * URL in Location header, every chunk is sent with PUT and Content-Range header. Endpoint acknowledges received
+ * bytes with 308 status and Range header, finished upload is answered with 200/201 and JSON containing file id.
+ * Failed upload continues after the last acknowledged chunk. Requests are authorized with a separate upload token,
+ * statuses other than success and 308 are reported as {@link APIException}, so only temporary problems are retried.
+ *
+ * @author info@bitbar.com
+ */
+public class ChunkedFileUploader {
+
+    private static final Logger LOGGER = Logger.getLogger(ChunkedFileUploader.class.getName());
+
+    private static final int CONNECT_TIMEOUT = (int) TimeUnit.SECONDS.toMillis(30);
+
+    private static final int READ_TIMEOUT = (int) TimeUnit.MINUTES.toMillis(5);
+
+    private static final long REPORT_INTERVAL = TimeUnit.SECONDS.toMillis(5);
+
+    private static final int RESUME_INCOMPLETE = 308;
+
+    private static final double MEGABYTE = 1024 * 1024;
+
+    // upload sessions started in this JVM, so repeated attempt continues where the previous one stopped
+    private static final ConcurrentMap<String, String> SESSIONS = new ConcurrentHashMap<>();
+
+    private final String uploadUrl;
+
+    private final String authorization;
+
+    private final Proxy proxy;
+
+    private final boolean noCheckCertificate;
+
+    private final int chunkSize;
+
+    private final PrintStream logger;
+
+    /**
+     * @param uploadUrl https address of the endpoint, plain http is accepted only for the local machine
+     * @param token     upload token sent as a bearer token, the account password is never sent to the endpoint
+     */
+    public ChunkedFileUploader(
+            String uploadUrl, String token, String proxyHost, Integer proxyPort,
+            boolean noCheckCertificate, int chunkSize, PrintStream logger) {
+        if (!isSecure(uploadUrl)) {
+            throw new IllegalArgumentException(String.format("Chunked upload URL %s has to use https", uploadUrl));
+        }
+        this.uploadUrl = uploadUrl;
+        this.authorization = "Bearer " + token;
+        this.proxy = StringUtils.isBlank(proxyHost) ? Proxy.NO_PROXY : new Proxy(Proxy.Type.HTTP,
+                new InetSocketAddress(proxyHost, proxyPort != null ? proxyPort : 80));
+        this.noCheckCertificate = noCheckCertificate;
+        this.chunkSize = chunkSize;
+        this.logger = logger;
+    }
+
+    public Long upload(File file, long projectId, String fileType, String contentType)
+            throws APIException, IOException {
+        long total = file.length();
+        String sessionKey = String.format("%s:%d:%d:%d:%s", file.getAbsolutePath(), total, file.lastModified(),
+                projectId, fileType);
+        long offset = 0;
+        String session = SESSIONS.get(sessionKey);
+        if (session != null) {
+            try {
+                ChunkResponse response = send(session, null, 0, 0, total);
+                if (response.fileId != null) {
+                    SESSIONS.remove(sessionKey);
+                    return response.fileId;
+                }
+                offset = response.offset;
+                logger.println(String.format(Messages.RESUMING_UPLOAD_OF_S_FROM_S(), file.getName(),
+                        FileUtils.byteCountToDisplaySize(offset)));
+            } catch (APIException | IOException e) {
+                LOGGER.log(Level.INFO, String.format("Upload session of %s cannot be resumed", file.getName()), e);
+                SESSIONS.remove(sessionKey);
+                session = null;
+            }
+        }
+        if (session == null) {
+            session = startSession(file, projectId, fileType, contentType, total);
+            SESSIONS.put(sessionKey, session);
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(chunkSize);
+            long start = System.currentTimeMillis();
+            long lastReport = start;
+            long startOffset = offset;
+            while (true) {
+                buffer.clear();
+                channel.position(offset);
+                int read;
+                do {
+                    read = channel.read(buffer);
+                } while (read != -1 && buffer.hasRemaining());
+                ChunkResponse response = send(session, buffer.array(), offset, buffer.position(), total);
+                if (response.fileId != null) {
+                    SESSIONS.remove(sessionKey);
+                    reportProgress(file, total, total - startOffset, start);
+                    return response.fileId;
+                }
+                if (response.offset <= offset) {
+                    throw new IOException(String.format("Upload of %s made no progress at byte %d", file.getName(),
+                            offset));
+                }
+                offset = response.offset;
+                long now = System.currentTimeMillis();
+                if (now - lastReport >= REPORT_INTERVAL) {
+                    reportProgress(file, offset, offset - startOffset, start);
+                    lastReport = now;
+                }
+            }
+        }
+    }
+
+    private void reportProgress(File file, long uploaded, long sent, long start) {
+        double seconds = Math.max(System.currentTimeMillis() - start, 1) / 1000.0;
+        logger.println(String.format(Messages.UPLOADED_S_OF_S_FROM_S_AT_S_MB_S(),
+                FileUtils.byteCountToDisplaySize(uploaded), FileUtils.byteCountToDisplaySize(file.length()),
+                file.getName(), String.format("%.2f", sent / MEGABYTE / seconds)));
+    }
+
+    private String startSession(File file, long projectId, String fileType, String contentType, long total)
+            throws APIException, IOException {
+        String url = String.format("%s%sprojectId=%d&fileType=%s&name=%s", uploadUrl,
+                uploadUrl.contains("?") ? "&" : "?", projectId, fileType,
+                URLEncoder.encode(file.getName(), StandardCharsets.UTF_8.name()));
+        HttpURLConnection connection = open(url, "POST");
+        try {
+            connection.setRequestProperty("X-Upload-Content-Type", contentType);
+            connection.setRequestProperty("X-Upload-Content-Length", String.valueOf(total));
+            connection.setFixedLengthStreamingMode(0);
+            connection.setDoOutput(true);
+            connection.getOutputStream().close();
+            int status = getStatus(connection);
+            String location = connection.getHeaderField("Location");
+            if (status / 100 != 2) {
+                throw new APIException(status, String.format("Cannot start upload session, status %d", status));
+            }
+            if (StringUtils.isBlank(location)) {
+                throw new IOException("Upload session started without session URL");
+            }
+            return new URL(new URL(url), location).toString();
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Sends one chunk, or just asks for the acknowledged offset when the chunk is empty.
+     */
+    private ChunkResponse send(String session, byte[] chunk, long offset, int length, long total)
+            throws APIException, IOException {
+        HttpURLConnection connection = open(session, "PUT");
+        try {
+            connection.setRequestProperty("Content-Range", length > 0 ?
+                    String.format("bytes %d-%d/%d", offset, offset + length - 1, total) :
+                    String.format("bytes */%d", total));
+            connection.setFixedLengthStreamingMode(length);
+            connection.setDoOutput(true);
+            try (OutputStream outputStream = connection.getOutputStream()) {
+                if (length > 0) {
+                    outputStream.write(chunk, 0, length);
+                }
+            }
+            int status = getStatus(connection);
+            if (status == RESUME_INCOMPLETE) {
+                return new ChunkResponse(null, parseAcknowledgedOffset(connection.getHeaderField("Range")));
+            }
+            if (status / 100 == 2) {
+                try (InputStream inputStream = connection.getInputStream()) {
+                    String body = IOUtils.toString(inputStream, StandardCharsets.UTF_8.name());
+                    return new ChunkResponse(JSONObject.fromObject(body).getLong("id"), total);
+                }
+            }
+            // status decides whether the upload is retried
+            throw new APIException(status, String.format("Chunk upload failed with status %d", status));
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static int getStatus(HttpURLConnection connection) throws IOException {
+        try {
+            return connection.getResponseCode();
+        } catch (HttpRetryException e) {
+            // a streamed request can't be repeated for authentication, the status still tells what happened
+            return e.responseCode();
+        }
+    }
+
+    private static boolean isSecure(String url) {
+        try {
+            URL parsed = new URL(url);
+            if ("https".equalsIgnoreCase(parsed.getProtocol())) {
+                return true;
+            }
+            // nothing leaves the machine, e.g. a local relay
+            return "http".equalsIgnoreCase(parsed.getProtocol())
+                    && InetAddress.getByName(parsed.getHost()).isLoopbackAddress();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static long parseAcknowledgedOffset(String range) {
+        // "bytes=0-N" means that bytes up to N inclusive were stored
+        if (StringUtils.isBlank(range) || !range.contains("-")) {
+            return 0;
+        }
+        return Long.parseLong(range.substring(range.lastIndexOf('-') + 1).trim()) + 1;
+    }
+
+    private HttpURLConnection open(String url, String method) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection(proxy);
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        connection.setRequestProperty("Authorization", authorization);
+        connection.setRequestProperty("Accept", "application/json");
+        if (noCheckCertificate && connection instanceof HttpsURLConnection) {
+            trustAllCertificates((HttpsURLConnection) connection);
+        }
+        return connection;
+    }
+
+    private static void trustAllCertificates(HttpsURLConnection connection) {
+        try {
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, new TrustManager[]{new X509TrustManager() {
+                @Override
+                public void checkClientTrusted(X509Certificate[] chain, String authType) {
+                }
+
+                @Override
+                public void checkServerTrusted(X509Certificate[] chain, String authType) {
+                }
+
+                @Override
+                public X509Certificate[] getAcceptedIssuers() {
+                    return new X509Certificate[0];
+                }
+            }}, null);
+            connection.setSSLSocketFactory(context.getSocketFactory());
+            connection.setHostnameVerifier((hostname, sslSession) -> true);
+        } catch (GeneralSecurityException e) {
+            LOGGER.log(Level.WARNING, "Cannot disable certificate check for chunked upload", e);
+        }
+    }
+
+    private static class ChunkResponse {
+
+        private final Long fileId;
+
+        private final long offset;
+
+        private ChunkResponse(Long fileId, long offset) {
+            this.fileId = fileId;
+            this.offset = offset;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.testdroid.jenkins.remotesupport;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+import hudson.tasks.junit.TestResult;
+import org.apache.commons.io.FileUtils;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Testdroid Run in Cloud plugin
+ *
+ * https://git@github.com/jenkinsci/testdroid-run-in-cloud
+ *
+ * Usage:
+ * Collects JUnit reports from result directories of device sessions into one test result. Reports are found among
+ * unpacked files, or inside results.zip when none were unpacked, and are parsed by Jenkins where they are. Reports
+ * inside results.zip are extracted one at a time into a temporary file, which is removed once parsed. Only the root
+ * element of each XML file is read ahead to skip files which are not JUnit reports.
+ *
+ * @author info@bitbar.com
+ */
+public class DeviceTestResultCollector implements FilePath.FileCallable<TestResult> {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger LOGGER = Logger.getLogger(DeviceTestResultCollector.class.getName());
+
+    private static final String RESULT_DIR_PREFIX = "testdroid_result-";
+
+    private final Set<Long> deviceSessions;
+
+    /**
+     * @param deviceSessions device sessions whose results are collected
+     */
+    public DeviceTestResultCollector(Collection<Long> deviceSessions) {
+        this.deviceSessions = new HashSet<>(deviceSessions);
+    }
+
+    /**
+     * @param resultsDir results path of the build
+     * @return test result of all devices, empty when no reports were found
+     */
+    @Override
+    public TestResult invoke(File resultsDir, VirtualChannel channel) throws IOException, InterruptedException {
+        TestResult result = new TestResult();
+        File[] children = resultsDir.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                if (child.isDirectory() && isOfCollectedSession(child.getName())) {
+                    try {
+                        parseReports(child, result);
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING, String.format("Cannot collect test results of %s",
+                                child.getName()), e);
+                    }
+                }
+            }
+        }
+        result.tally();
+        return result;
+    }
+
+    private boolean isOfCollectedSession(String dirName) {
+        int separator = dirName.lastIndexOf('-');
+        if (!dirName.startsWith(RESULT_DIR_PREFIX) || separator < RESULT_DIR_PREFIX.length()) {
+            return false;
+        }
+        try {
+            return deviceSessions.contains(Long.parseLong(dirName.substring(separator + 1)));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Parses all reports of one device, unpacked ones or those inside results.zip.
+     */
+    private static void parseReports(File resultDir, TestResult result) throws IOException {
+        List<File> unpackedReports;
+        try (Stream<Path> paths = Files.walk(resultDir.toPath())) {
+            unpackedReports = paths.filter(path -> path.toString().endsWith(".xml")).map(Path::toFile)
+                    .filter(DeviceTestResultCollector::isJUnitReport).collect(Collectors.toList());
+        }
+        for (File report : unpackedReports) {
+            parse(report, result);
+        }
+        // reports of a kept zip were already unpacked
+        File zip = new File(resultDir, "results.zip");
+        if (unpackedReports.isEmpty() && zip.isFile()) {
+            File report = File.createTempFile("testdroid-junit", ".xml");
+            try (ZipInputStream zipInputStream = new ZipInputStream(new FileInputStream(zip))) {
+                ZipEntry entry;
+                while ((entry = zipInputStream.getNextEntry()) != null) {
+                    if (!entry.isDirectory() && entry.getName().endsWith(".xml")) {
+                        Files.copy(zipInputStream, report.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                        if (isJUnitReport(report)) {
+                            parse(report, result);
+                        }
+                    }
+                }
+            } finally {
+                FileUtils.deleteQuietly(report);
+            }
+        }
+    }
+
+    private static void parse(File report, TestResult result) {
+        try {
+            result.parse(report);
+        } catch (IOException e) {
+            // one unreadable report doesn't prevent publishing the others
+            LOGGER.log(Level.WARNING, String.format("Cannot parse test report %s", report), e);
+        }
+    }
+
+    /**
+     * @return true if the root element of given XML file is a test suite, other documents are not read further
+     */
+    private static boolean isJUnitReport(File file) {
+        XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        try (InputStream inputStream = new FileInputStream(file)) {
+            XMLStreamReader reader = inputFactory.createXMLStreamReader(inputStream);
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                        String name = reader.getLocalName();
+                        return "testsuite".equals(name) || "testsuites".equals(name);
+                    }
+                }
+                return false;
+            } finally {
+                reader.close();
+            }
+        } catch (IOException | XMLStreamException e) {
+            // not a well formed document, e.g. a different kind of file with xml extension
+            LOGGER.log(Level.FINE, String.format("Skipping %s", file), e);
+            return false;
+        }
+    }
+}
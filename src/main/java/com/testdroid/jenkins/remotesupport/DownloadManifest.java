@@ -0,0 +1,181 @@
+package com.testdroid.jenkins.remotesupport;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Testdroid Run in Cloud plugin
+ *
+ * https://git@github.com/jenkinsci/testdroid-run-in-cloud
+ *
+ * Usage:
+ * Records size and SHA-256 digest of every file completely downloaded into a result directory, so repeated download
+ * skips complete files. A file present but not recorded was interrupted and is resumed from its current length. The
+ * cloud doesn't support ranged downloads, so already stored bytes come from the stream again. They are compared with
+ * the stored ones and only written from the first difference on, so a corrupt partial file is repaired. Digest is
+ * computed while copying, complete files are never read back. Manifests are kept in a directory of their own under
+ * the results path, so they don't end up among the results.
+ *
+ * @author info@bitbar.com
+ */
+public class DownloadManifest {
+
+    private static final Logger LOGGER = Logger.getLogger(DownloadManifest.class.getName());
+
+    public static final String DIRECTORY_NAME = ".testdroid-download-manifests";
+
+    private static final String FILE_NAME = "manifest";
+
+    private static final String EXTRACTED_SUFFIX = "!extracted";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File directory;
+
+    private final File manifest;
+
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    /**
+     * @param resultsDir results path of the build, manifests are kept under it
+     * @param directory  directory under the results path whose downloads are recorded
+     */
+    public DownloadManifest(File resultsDir, File directory) {
+        this.directory = directory;
+        Path relativePath = resultsDir.toPath().toAbsolutePath().normalize()
+                .relativize(directory.toPath().toAbsolutePath().normalize());
+        this.manifest = new File(new File(new File(resultsDir, DIRECTORY_NAME), relativePath.toString()), FILE_NAME);
+        load();
+    }
+
+    public synchronized boolean isComplete(String fileName) {
+        Entry entry = entries.get(fileName);
+        File file = new File(directory, fileName);
+        return entry != null && file.isFile() && file.length() == entry.size;
+    }
+
+    /**
+     * @return SHA-256 digest of given completely downloaded file, or null
+     */
+    public synchronized String getDigest(String fileName) {
+        Entry entry = entries.get(fileName);
+        return entry != null ? entry.digest : null;
+    }
+
+    /**
+     * @return true if given archive was completely unpacked into the directory before
+     */
+    public synchronized boolean isExtracted(String fileName) {
+        return entries.containsKey(fileName + EXTRACTED_SUFFIX);
+    }
+
+    public void markExtracted(String fileName, long size, String digest) throws IOException {
+        record(fileName + EXTRACTED_SUFFIX, size, digest);
+    }
+
+    /**
+     * Stores the stream into given file of the directory, continuing after the part stored before, and records it.
+     */
+    public void download(InputStream inputStream, String fileName) throws IOException {
+        FileUtils.forceMkdir(directory);
+        File file = new File(directory, fileName);
+        if (file.isFile() && isShared(file)) {
+            // hard link of deduplicated content, writing to it would change all other links too
+            Files.delete(file.toPath());
+        }
+        MessageDigest digest = FileDigestCalculator.newDigest();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        byte[] storedBuffer = new byte[BUFFER_SIZE];
+        long size = 0;
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            long stored = randomAccessFile.length();
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                int offset = 0;
+                if (size < stored) {
+                    // bytes already in the file are kept as long as they are equal to the content
+                    int compared = (int) Math.min(read, stored - size);
+                    randomAccessFile.readFully(storedBuffer, 0, compared);
+                    while (offset < compared && buffer[offset] == storedBuffer[offset]) {
+                        offset++;
+                    }
+                    if (offset < compared) {
+                        stored = size + offset;
+                        LOGGER.log(Level.FINE, String.format("Stored part of %s differs at byte %d, rewriting it",
+                                file, stored));
+                        randomAccessFile.setLength(stored);
+                        randomAccessFile.seek(stored);
+                    }
+                }
+                randomAccessFile.write(buffer, offset, read - offset);
+                digest.update(buffer, 0, read);
+                size += read;
+            }
+            // stored file might be longer than the content
+            randomAccessFile.setLength(size);
+        }
+        record(fileName, size, FileDigestCalculator.toHex(digest.digest()));
+    }
+
+    private static boolean isShared(File file) throws IOException {
+        try {
+            return ((Number) Files.getAttribute(file.toPath(), "unix:nlink")).intValue() > 1;
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private synchronized void record(String name, long size, String digest) throws IOException {
+        entries.put(name, new Entry(size, digest));
+        FileUtils.forceMkdir(manifest.getParentFile());
+        // appended, the last line of a file wins
+        Files.write(manifest.toPath(),
+                String.format("%s\t%d\t%s%n", name, size, digest).getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    private void load() {
+        if (!manifest.isFile()) {
+            return;
+        }
+        try {
+            List<String> lines = Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8);
+            for (String line : lines) {
+                String[] fields = StringUtils.split(line, '\t');
+                if (fields.length == 3) {
+                    entries.put(fields[0], new Entry(Long.parseLong(fields[1]), fields[2]));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            LOGGER.log(Level.WARNING, String.format("Ignoring unreadable download manifest %s", manifest), e);
+            entries.clear();
+        }
+    }
+
+    private static class Entry {
+
+        private final long size;
+
+        private final String digest;
+
+        private Entry(long size, String digest) {
+            this.size = size;
+            this.digest = digest;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.testdroid.jenkins.remotesupport;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Testdroid Run in Cloud plugin
+ *
+ * https://git@github.com/jenkinsci/testdroid-run-in-cloud
+ *
+ * Usage:
+ * Computes SHA-256 digest of a file on the machine where the file is located. Digests are remembered per file
+ * version (path, size, modification time and file key), so a file which didn't change since the last build isn't
+ * read again just to find out it was already uploaded.
+ *
+ * @author info@bitbar.com
+ */
+public class FileDigestCalculator implements FilePath.FileCallable<String> {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final String ALGORITHM = "SHA-256";
+
+    private static final int MAX_REMEMBERED_DIGESTS = 1000;
+
+    // digests computed in this JVM, keyed by file version
+    private static final Map<String, String> DIGESTS = Collections.synchronizedMap(
+            new LinkedHashMap<String, String>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                    return size() > MAX_REMEMBERED_DIGESTS;
+                }
+            });
+
+    @Override
+    public String invoke(File file, VirtualChannel vc) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        String version = getVersion(file);
+        String result = DIGESTS.get(version);
+        if (result == null) {
+            result = calculate(file);
+            // file could have been modified while it was read
+            if (version.equals(getVersion(file))) {
+                DIGESTS.put(version, result);
+            }
+        }
+        return result;
+    }
+
+    private static String getVersion(File file) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        return String.format("%s:%d:%s:%s", file.getAbsolutePath(), attributes.size(),
+                attributes.lastModifiedTime(), attributes.fileKey());
+    }
+
+    private static String calculate(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        try (InputStream inputStream = new FileInputStream(file)) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static String toHex(byte[] bytes) {
+        StringBuilder result = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            result.append(String.format("%02x", b));
+        }
+        return result.toString();
+    }
+}
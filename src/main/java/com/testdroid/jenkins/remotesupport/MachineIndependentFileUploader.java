@@ -1,15 +1,17 @@
 package com.testdroid.jenkins.remotesupport;
 
-import com.testdroid.api.APIClient;
+import com.testdroid.api.APIException;
 import com.testdroid.api.model.APIProject;
 import com.testdroid.jenkins.Messages;
 import com.testdroid.jenkins.TestdroidCloudSettings;
-import com.testdroid.jenkins.utils.TestdroidApiUtil;
+import com.testdroid.jenkins.utils.RetryPolicy;
 import hudson.FilePath;
 import hudson.model.BuildListener;
 import hudson.remoting.VirtualChannel;
+import org.apache.commons.lang.StringUtils;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -33,6 +35,12 @@ public class MachineIndependentFileUploader extends MachineIndependentTask imple
 
     private long projectId;
 
+    private String chunkedUploadUrl;
+
+    private String chunkedUploadToken;
+
+    private int uploadChunkSize;
+
     public enum FILE_TYPE {
         APPLICATION,
         TEST,
@@ -47,51 +55,79 @@ public class MachineIndependentFileUploader extends MachineIndependentTask imple
         this.projectId = projectId;
         this.fileType = fileType;
         this.listener = listener;
+        this.chunkedUploadUrl = descriptor.getChunkedUploadUrl();
+        this.chunkedUploadToken = descriptor.getChunkedUploadToken();
+        this.uploadChunkSize = descriptor.getUploadChunkSize() * 1024 * 1024;
+    }
+
+    public long getProjectId() {
+        return projectId;
+    }
+
+    /**
+     * @return cloud URL and account this uploader sends files with, file ids are valid only there
+     */
+    public String getCacheScope() {
+        return String.format("%s:%s", cloudUrl, user);
+    }
+
+    public FILE_TYPE getFileType() {
+        return fileType;
+    }
+
+    private String getContentType() {
+        return fileType == FILE_TYPE.DATA ? "application/zip" : "application/octet-stream";
     }
 
     @Override
     public Long invoke(File file, VirtualChannel vc) {
-        Long result = null;
-        int attempts = 3;
-        do {
-            try {
-                if (!TestdroidApiUtil.isInitialized()) {
-                    TestdroidApiUtil.init(user, password, cloudUrl, privateInstance,
-                            noCheckCertificate, isProxy, proxyHost, proxyPort, proxyUser,
-                            proxyPassword);
-                }
-                APIClient client = TestdroidApiUtil.getInstance().getTestdroidAPIClient();
-                APIProject project = client.me().getProject(projectId);
-
-                if (file.exists()) {
-                    switch (fileType) {
-                        case APPLICATION:
-                            result = project.uploadApplication(file, "application/octet-stream").getId();
-                            break;
-                        case TEST:
-                            result = project.uploadTest(file, "application/octet-stream").getId();
-                            break;
-                        case DATA:
-                            result = project.uploadData(file, "application/zip").getId();
-                            break;
-                    }
-                } else {
-                    listener.getLogger().println(String.format("%s: %s", Messages.ERROR_FILE_NOT_FOUND(),
-                            file.getAbsolutePath()));
-                    return null;
-                }
-            } catch (Exception ex) {
-                String message = String.format("Cannot upload file %s%s", file.getAbsolutePath(), attempts > 1 ?
-                        ". Will retry automatically" : "Won't be retried anymore");
-                listener.getLogger().println(message);
-                LOGGER.log(Level.WARNING, message, ex);
-                try {
-                    Thread.sleep(2000);
-                } catch (InterruptedException ignore) {
-                }
+        if (!file.exists()) {
+            listener.getLogger().println(String.format("%s: %s", Messages.ERROR_FILE_NOT_FOUND(),
+                    file.getAbsolutePath()));
+            return null;
+        }
+        try {
+            return RetryPolicy.TRANSFER.execute(String.format("Upload of %s", file.getAbsolutePath()),
+                    listener.getLogger(), () -> upload(file));
+        } catch (Exception ex) {
+            if (Thread.currentThread().isInterrupted()) {
+                // upload was cancelled, e.g. because a sibling upload failed
+                return null;
             }
-        } while (result == null && --attempts > 0);
+            String message = String.format("Cannot upload file %s", file.getAbsolutePath());
+            listener.getLogger().println(message);
+            LOGGER.log(Level.WARNING, message, ex);
+        }
+        return null;
+    }
+
+    private boolean isChunkedUpload() {
+        if (StringUtils.isBlank(chunkedUploadUrl) || StringUtils.isBlank(chunkedUploadToken)) {
+            return false;
+        }
+        // proxy credentials can't be passed through an https tunnel, the API client handles them
+        if (isProxy && StringUtils.isNotBlank(proxyUser)) {
+            LOGGER.log(Level.INFO, "Proxy requires credentials, files are uploaded through the API");
+            return false;
+        }
+        return true;
+    }
 
-        return result;
+    private Long upload(File file) throws APIException, IOException {
+        if (isChunkedUpload()) {
+            return new ChunkedFileUploader(chunkedUploadUrl, chunkedUploadToken, isProxy ? proxyHost : null,
+                    proxyPort, noCheckCertificate, uploadChunkSize, listener.getLogger())
+                    .upload(file, projectId, fileType.name(), getContentType());
+        }
+        APIProject project = getApiUtil().getUser().getProject(projectId);
+        switch (fileType) {
+            case APPLICATION:
+                return project.uploadApplication(file, getContentType()).getId();
+            case TEST:
+                return project.uploadTest(file, getContentType()).getId();
+            case DATA:
+            default:
+                return project.uploadData(file, getContentType()).getId();
+        }
     }
 }
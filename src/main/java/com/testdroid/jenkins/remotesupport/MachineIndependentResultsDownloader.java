@@ -1,6 +1,5 @@
 package com.testdroid.jenkins.remotesupport;
 
-import com.testdroid.api.APIClient;
 import com.testdroid.api.APIException;
 import com.testdroid.api.APIQueryBuilder;
 import com.testdroid.api.model.APIDeviceSession;
@@ -8,16 +7,33 @@ import com.testdroid.api.model.APIScreenshot;
 import com.testdroid.api.model.APITestRun;
 import com.testdroid.jenkins.Messages;
 import com.testdroid.jenkins.TestdroidCloudSettings;
+import com.testdroid.jenkins.utils.DeviceSessionStates;
+import com.testdroid.jenkins.utils.RetryPolicy;
 import com.testdroid.jenkins.utils.TestdroidApiUtil;
+import hudson.Util;
 import hudson.model.BuildListener;
 import hudson.remoting.Callable;
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
 
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.Serializable;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -27,15 +43,19 @@ import java.util.logging.Logger;
  * https://git@github.com/jenkinsci/testdroid-run-in-cloud
  *
  * Usage:
- * @TODO
+ * Downloads results of device sessions of a test run, several devices at the same time. Sessions downloaded before
+ * can be skipped and download can be limited to finished sessions, so results are collected while other devices
+ * are still running.
  *
  * @author info@bitbar.com
  */
 public class MachineIndependentResultsDownloader extends MachineIndependentTask
-        implements Callable<Boolean, APIException> {
+        implements Callable<MachineIndependentResultsDownloader.DownloadSummary, APIException> {
 
     private static final Logger LOGGER = Logger.getLogger(MachineIndependentResultsDownloader.class.getName());
 
+    private static final int SCREENSHOT_PAGE_SIZE = 50;
+
     private boolean downloadScreenshots;
 
     private BuildListener listener;
@@ -46,9 +66,35 @@ public class MachineIndependentResultsDownloader extends MachineIndependentTask
 
     private long testRunId;
 
+    private int downloadThreads;
+
+    private int screenshotRetention;
+
+    private boolean extractResults;
+
+    private String resultsIncludes;
+
+    private String resultsExcludes;
+
+    private boolean keepResultsZip;
+
+    private Set<Long> skippedSessions;
+
+    private boolean finishedSessionsOnly;
+
+    // shared by all devices, created on the agent
+    private transient ExecutorService screenshotExecutor;
+
+    private transient Semaphore pendingScreenshots;
+
+    private transient ConcurrentMap<File, DownloadManifest> manifests;
+
+    private transient ScreenshotStore screenshotStore;
+
     public MachineIndependentResultsDownloader(
             TestdroidCloudSettings.DescriptorImpl descriptor, BuildListener listener, long projectId, long testRunId,
-            String resultsPath, boolean downloadScreenshots) {
+            String resultsPath, boolean downloadScreenshots, boolean extractResults, String resultsIncludes,
+            String resultsExcludes, boolean keepResultsZip, Set<Long> skippedSessions, boolean finishedSessionsOnly) {
         super(descriptor);
 
         this.projectId = projectId;
@@ -56,63 +102,278 @@ public class MachineIndependentResultsDownloader extends MachineIndependentTask
         this.resultsPath = resultsPath;
         this.downloadScreenshots = downloadScreenshots;
         this.listener = listener;
+        this.downloadThreads = descriptor.getDownloadThreads();
+        this.screenshotRetention = descriptor.getScreenshotRetention();
+        this.extractResults = extractResults;
+        this.resultsIncludes = resultsIncludes;
+        this.resultsExcludes = resultsExcludes;
+        this.keepResultsZip = keepResultsZip;
+        this.skippedSessions = new HashSet<>(skippedSessions);
+        this.finishedSessionsOnly = finishedSessionsOnly;
     }
 
     @Override
-    public Boolean call() throws APIException {
-        if (!TestdroidApiUtil.isInitialized()) {
-            TestdroidApiUtil.init(user, password, cloudUrl, privateInstance,
-                    noCheckCertificate, isProxy, proxyHost, proxyPort, proxyUser,
-                    proxyPassword);
-        }
-        APIClient client = TestdroidApiUtil.getInstance().getTestdroidAPIClient();
-        APITestRun testRun = client.me().getProject(projectId).getTestRun(testRunId);
+    public DownloadSummary call() throws APIException {
+        TestdroidApiUtil apiUtil = getApiUtil();
+        APITestRun testRun = RetryPolicy.DEFAULT.execute("Getting test run", listener.getLogger(),
+                () -> apiUtil.getUser().getProject(projectId).getTestRun(testRunId));
+        List<APIDeviceSession> deviceSessions = new ArrayList<>();
+        for (APIDeviceSession deviceSession : RetryPolicy.DEFAULT.execute("Getting device sessions",
+                listener.getLogger(), () -> testRun.getDeviceSessionsResource(new APIQueryBuilder()
+                        .limit(Integer.MAX_VALUE)).getEntity().getData())) {
+            if (!skippedSessions.contains(deviceSession.getId())
+                    && (!finishedSessionsOnly || DeviceSessionStates.isFinished(deviceSession))) {
+                deviceSessions.add(deviceSession);
+            }
+        }
+        Set<Long> downloadedSessions = new HashSet<>();
+        if (deviceSessions.isEmpty()) {
+            return new DownloadSummary(false, downloadedSessions);
+        }
+
         boolean success = false; //if we are able to download results from at least one device then whole method
         // should return true, false only when results was not available at all, other case just warn in logs
+        long start = System.currentTimeMillis();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1,
+                Math.min(downloadThreads, deviceSessions.size())));
+        screenshotExecutor = downloadScreenshots ? Executors.newFixedThreadPool(downloadThreads) : null;
+        pendingScreenshots = new Semaphore(2 * SCREENSHOT_PAGE_SIZE);
+        manifests = new ConcurrentHashMap<>();
+        screenshotStore = downloadScreenshots && screenshotRetention > 0 ?
+                new ScreenshotStore(new File(resultsPath), screenshotRetention) : null;
+        try {
+            List<Future<DeviceDownload>> futures = new ArrayList<>();
+            for (APIDeviceSession deviceSession : deviceSessions) {
+                futures.add(executor.submit(() -> download(deviceSession)));
+            }
+            for (Future<DeviceDownload> future : futures) {
+                DeviceDownload deviceDownload;
+                try {
+                    deviceDownload = future.get();
+                } catch (ExecutionException e) {
+                    LOGGER.log(Level.WARNING, Messages.DOWNLOAD_RESULTS_FAILED(), e.getCause());
+                    continue;
+                }
+                success |= deviceDownload.success;
+                if (deviceDownload.success || deviceDownload.time == null) {
+                    downloadedSessions.add(deviceDownload.sessionId);
+                }
+                if (deviceDownload.time != null) {
+                    listener.getLogger().println(String.format(Messages.RESULTS_FROM_S_DOWNLOADED_IN_S(),
+                            deviceDownload.deviceName, Util.getTimeSpanString(deviceDownload.time)));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOGGER.log(Level.WARNING, Messages.DOWNLOAD_RESULTS_FAILED(), e);
+        } finally {
+            executor.shutdownNow();
+            if (screenshotExecutor != null) {
+                screenshotExecutor.shutdownNow();
+            }
+        }
+        listener.getLogger().println(String.format(Messages.ALL_RESULTS_DOWNLOADED_IN_S(),
+                Util.getTimeSpanString(System.currentTimeMillis() - start)));
+        if (screenshotStore != null && !finishedSessionsOnly) {
+            int removed = screenshotStore.collectGarbage();
+            LOGGER.log(Level.FINE, String.format("%d unused screenshots removed from the store", removed));
+        }
 
-        String deviceDisplayName;
-        for (APIDeviceSession deviceSession : testRun.getDeviceSessionsResource(new APIQueryBuilder().limit(Integer
-                .MAX_VALUE)).getEntity().getData()) {
-            deviceDisplayName = deviceSession.getDevice().getDisplayName();
-
-            //create directory with results for this device
-            File resultDir = new File(String
-                    .format("%s/testdroid_result-%s-%d", resultsPath.endsWith(File.pathSeparator) ? resultsPath
-                                    .substring(0, resultsPath.length() - File.pathSeparator.length()) : resultsPath,
-                            deviceDisplayName.replaceAll(" ", "_"), deviceSession.getId()));
-            if (deviceSession.getState() != APIDeviceSession.State.EXCLUDED) {
-                success = download(deviceSession.getOutputFiles(), resultDir, "results.zip", deviceDisplayName);
-                //optionally download screenshots
-                if (downloadScreenshots) {
-                    resultDir = new File(resultDir, "screenshots");
-                    for (APIScreenshot screenshot : deviceSession.getScreenshotsResource(new APIQueryBuilder()
-                            .limit(Integer.MAX_VALUE)).getEntity().getData()) {
-                        download(screenshot.getContent(), resultDir, screenshot.getOriginalName(), deviceDisplayName);
+        return new DownloadSummary(success, downloadedSessions);
+    }
+
+    private DeviceDownload download(APIDeviceSession deviceSession) {
+        long start = System.currentTimeMillis();
+        String deviceDisplayName = deviceSession.getDevice().getDisplayName();
+        if (deviceSession.getState() == APIDeviceSession.State.EXCLUDED) {
+            listener.getLogger().println(String
+                    .format(Messages.NO_RESULT_FROM_DEVICE_TEST_WAS_NOT_LAUNCHED_S(), deviceDisplayName));
+            return new DeviceDownload(deviceSession.getId(), deviceDisplayName, false, null);
+        }
+
+        //create directory with results for this device
+        File resultDir = new File(String
+                .format("%s/testdroid_result-%s-%d", resultsPath.endsWith(File.pathSeparator) ? resultsPath
+                                .substring(0, resultsPath.length() - File.pathSeparator.length()) : resultsPath,
+                        deviceDisplayName.replaceAll(" ", "_"), deviceSession.getId()));
+        boolean success = extractResults ? extract(deviceSession::getOutputFiles, resultDir, deviceDisplayName)
+                : download(deviceSession::getOutputFiles, resultDir, "results.zip", deviceDisplayName);
+        //optionally download screenshots
+        if (downloadScreenshots) {
+            downloadScreenshots(deviceSession, new File(resultDir, "screenshots"), deviceDisplayName);
+        }
+        return new DeviceDownload(deviceSession.getId(), deviceDisplayName, success,
+                System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Lists screenshots page by page and hands them to the shared screenshot pool. Number of screenshots listed
+     * but not yet downloaded is bounded, so listing waits when downloads fall behind.
+     */
+    private void downloadScreenshots(APIDeviceSession deviceSession, File screenshotsDir, String deviceName) {
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            for (int offset = 0; ; offset += SCREENSHOT_PAGE_SIZE) {
+                int pageOffset = offset;
+                List<APIScreenshot> page = RetryPolicy.DEFAULT.execute("Getting screenshots", listener.getLogger(),
+                        () -> deviceSession.getScreenshotsResource(new APIQueryBuilder().offset(pageOffset)
+                                .limit(SCREENSHOT_PAGE_SIZE)).getEntity().getData());
+                for (APIScreenshot screenshot : page) {
+                    pendingScreenshots.acquire();
+                    try {
+                        futures.add(screenshotExecutor.submit(() -> {
+                            try {
+                                if (download(screenshot::getContent, screenshotsDir, screenshot.getOriginalName(),
+                                        deviceName) && screenshotStore != null) {
+                                    store(screenshotsDir, screenshot.getOriginalName());
+                                }
+                            } finally {
+                                pendingScreenshots.release();
+                            }
+                        }));
+                    } catch (RejectedExecutionException e) {
+                        pendingScreenshots.release();
+                        throw e;
                     }
                 }
-            } else {
-                listener.getLogger().println(String
-                        .format(Messages.NO_RESULT_FROM_DEVICE_TEST_WAS_NOT_LAUNCHED_S(), deviceDisplayName));
+                if (page.size() < SCREENSHOT_PAGE_SIZE) {
+                    break;
+                }
+            }
+            for (Future<?> future : futures) {
+                future.get();
             }
+        } catch (APIException | ExecutionException e) {
+            String msg = String.format(Messages.ERROR_DURING_DOWNLOAD_S_FROM_S(), "screenshots", deviceName);
+            listener.getLogger().println(msg);
+            LOGGER.log(Level.WARNING, msg, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+    }
+
+    private boolean download(
+            RetryPolicy.RetryableCall<InputStream, APIException> source, File resultDir, String fileName,
+            String deviceName) {
+        DownloadManifest manifest = getManifest(resultDir);
+        if (manifest.isComplete(fileName)) {
+            LOGGER.log(Level.FINE, String.format("%s from %s is already downloaded", fileName, deviceName));
+            return true;
+        }
+        return transfer(source, resultDir, fileName, deviceName,
+                inputStream -> manifest.download(inputStream, fileName));
+    }
 
-        return success;
+    /**
+     * Unpacks results zip into the result directory as it streams in, the zip itself is stored only on request.
+     */
+    private boolean extract(
+            RetryPolicy.RetryableCall<InputStream, APIException> source, File resultDir, String deviceName) {
+        DownloadManifest manifest = getManifest(resultDir);
+        if (manifest.isExtracted("results.zip")) {
+            LOGGER.log(Level.FINE, String.format("results.zip from %s is already unpacked", deviceName));
+            return true;
+        }
+        ResultsZipExtractor extractor = new ResultsZipExtractor(resultsIncludes, resultsExcludes);
+        File rawZip = keepResultsZip ? new File(resultDir, "results.zip") : null;
+        return transfer(source, resultDir, "results.zip", deviceName, inputStream -> {
+            MessageDigest digest = FileDigestCalculator.newDigest();
+            CountingInputStream countingInputStream = new CountingInputStream(
+                    new DigestInputStream(inputStream, digest));
+            extractor.extract(countingInputStream, resultDir, rawZip);
+            manifest.markExtracted("results.zip", countingInputStream.getByteCount(),
+                    FileDigestCalculator.toHex(digest.digest()));
+        });
     }
 
-    private boolean download(InputStream inputStream, File resultDir, String fileName, String deviceName) {
-        OutputStream outputStream = null;
+    private boolean transfer(
+            RetryPolicy.RetryableCall<InputStream, APIException> source, File resultDir, String fileName,
+            String deviceName, StreamConsumer consumer) {
         try {
             FileUtils.forceMkdir(resultDir);
-            outputStream = new FileOutputStream(new File(resultDir, fileName));
-            IOUtils.copy(inputStream, outputStream);
-            return true;
+            return RetryPolicy.TRANSFER.execute(String.format("Download of %s from %s", fileName, deviceName),
+                    listener.getLogger(), () -> {
+                        try (InputStream inputStream = source.call()) {
+                            consumer.accept(inputStream);
+                        }
+                        return true;
+                    });
         } catch (Exception e) {
             String msg = String.format(Messages.ERROR_DURING_DOWNLOAD_S_FROM_S(), fileName, deviceName);
             listener.getLogger().println(msg);
             LOGGER.log(Level.WARNING, msg, e);
-        } finally {
-            IOUtils.closeQuietly(outputStream);
         }
         return false;
     }
+
+    private void store(File screenshotsDir, String fileName) {
+        String digest = getManifest(screenshotsDir).getDigest(fileName);
+        if (digest == null) {
+            return;
+        }
+        try {
+            screenshotStore.add(new File(screenshotsDir, fileName), digest);
+        } catch (IOException e) {
+            // the screenshot just stays a separate copy
+            LOGGER.log(Level.FINE, String.format("Cannot deduplicate screenshot %s", fileName), e);
+        }
+    }
+
+    private DownloadManifest getManifest(File directory) {
+        return manifests.computeIfAbsent(directory, dir -> new DownloadManifest(new File(resultsPath), dir));
+    }
+
+    private interface StreamConsumer {
+
+        void accept(InputStream inputStream) throws IOException;
+    }
+
+    /**
+     * Result of a download, passed back from the agent
+     */
+    public static class DownloadSummary implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final boolean success;
+
+        private final Set<Long> downloadedSessions;
+
+        public DownloadSummary(boolean success, Set<Long> downloadedSessions) {
+            this.success = success;
+            this.downloadedSessions = downloadedSessions;
+        }
+
+        /**
+         * @return true if results of at least one device were downloaded
+         */
+        public boolean isSuccess() {
+            return success;
+        }
+
+        /**
+         * @return device sessions which don't have to be downloaded again
+         */
+        public Set<Long> getDownloadedSessions() {
+            return downloadedSessions;
+        }
+    }
+
+    private static class DeviceDownload {
+
+        private final Long sessionId;
+
+        private final String deviceName;
+
+        private final boolean success;
+
+        private final Long time;
+
+        private DeviceDownload(Long sessionId, String deviceName, boolean success, Long time) {
+            this.sessionId = sessionId;
+            this.deviceName = deviceName;
+            this.success = success;
+            this.time = time;
+        }
+    }
 }
@@ -1,8 +1,12 @@
 package com.testdroid.jenkins.remotesupport;
 
 import com.testdroid.jenkins.TestdroidCloudSettings;
+import com.testdroid.jenkins.utils.TestdroidApiUtil;
 
 import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Testdroid Run in Cloud plugin
@@ -10,12 +14,19 @@ import java.io.Serializable;
  * https://git@github.com/jenkinsci/testdroid-run-in-cloud
  *
  * Usage:
- * @TODO
+ * Base of tasks sent to agents, carries the cloud settings. Tasks on the same agent share one API client for the same
+ * settings, so its connections and access token are reused. When tasks arrive with different settings, the client of
+ * the previous ones is dropped.
  *
  * @author info@bitbar.com
  */
 public class MachineIndependentTask implements Serializable {
 
+    private static final Logger LOGGER = Logger.getLogger(MachineIndependentTask.class.getName());
+
+    // registry entry used by the last task in this JVM
+    private static final AtomicReference<TestdroidApiUtil> LAST_USED = new AtomicReference<>();
+
     String cloudUrl;
 
     boolean isProxy;
@@ -48,4 +59,18 @@ public class MachineIndependentTask implements Serializable {
         this.proxyUser = descriptor.getProxyUser();
         this.proxyPassword = descriptor.getProxyPassword();
     }
+
+    /**
+     * @return API client registry entry for settings of this task
+     */
+    TestdroidApiUtil getApiUtil() {
+        TestdroidApiUtil result = TestdroidApiUtil.get(user, password, cloudUrl, privateInstance,
+                noCheckCertificate, isProxy, proxyHost, proxyPort, proxyUser, proxyPassword);
+        TestdroidApiUtil previous = LAST_USED.getAndSet(result);
+        if (previous != null && previous != result) {
+            LOGGER.log(Level.INFO, "Cloud settings changed, API client of previous settings is dropped");
+            TestdroidApiUtil.evict(previous);
+        }
+        return result;
+    }
 }
@@ -0,0 +1,178 @@
+package com.testdroid.jenkins.remotesupport;
+
+import com.testdroid.jenkins.Messages;
+import com.testdroid.jenkins.utils.UploadCache;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.BuildListener;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Testdroid Run in Cloud plugin
+ *
+ * https://git@github.com/jenkinsci/testdroid-run-in-cloud
+ *
+ * Usage:
+ * Uploads application, test and data files at the same time. As soon as one of the uploads fails the remaining
+ * ones are cancelled. Files already uploaded with the same content are taken from the {@link UploadCache}.
+ *
+ * @author info@bitbar.com
+ */
+public class ParallelFileUploader {
+
+    private static final Logger LOGGER = Logger.getLogger(ParallelFileUploader.class.getName());
+
+    private final BuildListener listener;
+
+    private final Map<MachineIndependentFileUploader.FILE_TYPE, FilePath> files =
+            new EnumMap<>(MachineIndependentFileUploader.FILE_TYPE.class);
+
+    private final Map<MachineIndependentFileUploader.FILE_TYPE, MachineIndependentFileUploader> uploaders =
+            new EnumMap<>(MachineIndependentFileUploader.FILE_TYPE.class);
+
+    private final Map<MachineIndependentFileUploader.FILE_TYPE, Long> cachedFileIds =
+            new EnumMap<>(MachineIndependentFileUploader.FILE_TYPE.class);
+
+    public ParallelFileUploader(BuildListener listener) {
+        this.listener = listener;
+    }
+
+    public void add(FilePath file, MachineIndependentFileUploader uploader) {
+        files.put(uploader.getFileType(), file);
+        uploaders.put(uploader.getFileType(), uploader);
+    }
+
+    /**
+     * Uploads all added files concurrently.
+     *
+     * @return cloud file ids by file type or null when any of the uploads failed
+     */
+    public Map<MachineIndependentFileUploader.FILE_TYPE, Long> upload() throws InterruptedException {
+        Map<MachineIndependentFileUploader.FILE_TYPE, Long> result =
+                new EnumMap<>(MachineIndependentFileUploader.FILE_TYPE.class);
+        if (files.isEmpty()) {
+            return result;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(files.size());
+        CompletionService<UploadResult> completionService = new ExecutorCompletionService<>(executor);
+        List<Future<UploadResult>> futures = new ArrayList<>();
+        cachedFileIds.clear();
+        long start = System.currentTimeMillis();
+        try {
+            for (final MachineIndependentFileUploader.FILE_TYPE fileType : files.keySet()) {
+                futures.add(completionService.submit(() -> upload(fileType)));
+            }
+
+            for (int i = 0; i < futures.size(); i++) {
+                UploadResult uploadResult;
+                try {
+                    uploadResult = completionService.take().get();
+                } catch (ExecutionException e) {
+                    listener.getLogger().println(String.format("%s: %s", Messages.ERROR_CONNECTION(),
+                            e.getCause().getLocalizedMessage()));
+                    LOGGER.log(Level.WARNING, Messages.ERROR_CONNECTION(), e.getCause());
+                    return null;
+                }
+                if (uploadResult.fileId == null) {
+                    return null;
+                }
+                String fileName = files.get(uploadResult.fileType).getName();
+                if (uploadResult.cached) {
+                    listener.getLogger().println(String.format(getNotChangedMessage(uploadResult.fileType), fileName));
+                    cachedFileIds.put(uploadResult.fileType, uploadResult.fileId);
+                } else {
+                    listener.getLogger().println(String.format(Messages.FILE_S_UPLOADED_IN_S(), fileName,
+                            Util.getTimeSpanString(uploadResult.time)));
+                }
+                result.put(uploadResult.fileType, uploadResult.fileId);
+            }
+            listener.getLogger().println(String.format(Messages.ALL_FILES_UPLOADED_IN_S(),
+                    Util.getTimeSpanString(System.currentTimeMillis() - start)));
+            return result;
+        } finally {
+            // no-op for finished uploads, cancels the siblings of a failed one
+            for (Future<UploadResult> future : futures) {
+                future.cancel(true);
+            }
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Removes ids of files which were taken from the cache in last upload from the cache, so next upload sends
+     * these files again.
+     *
+     * @return true if any file id was taken from the cache
+     */
+    public boolean invalidateCachedFiles() {
+        boolean result = !cachedFileIds.isEmpty();
+        for (Long fileId : cachedFileIds.values()) {
+            UploadCache.getInstance().invalidate(fileId);
+        }
+        cachedFileIds.clear();
+        return result;
+    }
+
+    private UploadResult upload(MachineIndependentFileUploader.FILE_TYPE fileType)
+            throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        FilePath file = files.get(fileType);
+        MachineIndependentFileUploader uploader = uploaders.get(fileType);
+        UploadCache cache = UploadCache.getInstance();
+
+        String digest = cache.isEnabled() ? file.act(new FileDigestCalculator()) : null;
+        String scope = uploader.getCacheScope();
+        Long fileId = digest != null ? cache.get(scope, uploader.getProjectId(), fileType.name(), digest) : null;
+        if (fileId != null) {
+            return new UploadResult(fileType, fileId, true, System.currentTimeMillis() - start);
+        }
+        fileId = file.act(uploader);
+        cache.put(scope, uploader.getProjectId(), fileType.name(), digest, fileId);
+        return new UploadResult(fileType, fileId, false, System.currentTimeMillis() - start);
+    }
+
+    private static String getNotChangedMessage(MachineIndependentFileUploader.FILE_TYPE fileType) {
+        switch (fileType) {
+            case APPLICATION:
+                return Messages.APPLICATION_S_NOT_CHANGED_NOT_UPLOADING();
+            case TEST:
+                return Messages.INSTRUMENTATION_S_NOT_CHANGED_NOT_UPLOADING();
+            case DATA:
+            default:
+                return Messages.DATA_FILE_S_NOT_CHANGED_NOT_UPLOADING();
+        }
+    }
+
+    private static class UploadResult {
+
+        private final MachineIndependentFileUploader.FILE_TYPE fileType;
+
+        private final Long fileId;
+
+        private final boolean cached;
+
+        private final long time;
+
+        private UploadResult(
+                MachineIndependentFileUploader.FILE_TYPE fileType, Long fileId, boolean cached, long time) {
+            this.fileType = fileType;
+            this.fileId = fileId;
+            this.cached = cached;
+            this.time = time;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.testdroid.jenkins.remotesupport;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.TeeInputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.commons.lang.StringUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Testdroid Run in Cloud plugin
+ *
+ * https://git@github.com/jenkinsci/testdroid-run-in-cloud
+ *
+ * Usage:
+ * Unpacks results zip while it is being downloaded, so the zip itself doesn't have to be stored. Entries are filtered
+ * with comma separated include and exclude glob patterns matched against entry paths. Entries pointing outside of the
+ * target directory are refused.
+ *
+ * @author info@bitbar.com
+ */
+public class ResultsZipExtractor {
+
+    private final List<PathMatcher> includes;
+
+    private final List<PathMatcher> excludes;
+
+    public ResultsZipExtractor(String includes, String excludes) {
+        this.includes = toMatchers(includes);
+        this.excludes = toMatchers(excludes);
+    }
+
+    /**
+     * @param rawZip file to store the zip itself into as well, or null
+     */
+    public void extract(InputStream inputStream, File targetDir, File rawZip) throws IOException {
+        FileUtils.forceMkdir(targetDir);
+        Path target = targetDir.getCanonicalFile().toPath();
+        try (InputStream source = rawZip != null ?
+                new TeeInputStream(inputStream, new FileOutputStream(rawZip), true) : inputStream;
+             ZipInputStream zipInputStream = new ZipInputStream(source)) {
+            ZipEntry entry;
+            while ((entry = zipInputStream.getNextEntry()) != null) {
+                Path entryPath = target.resolve(entry.getName()).normalize();
+                if (!entryPath.startsWith(target) || entryPath.equals(target)) {
+                    throw new IOException(String.format("Zip entry %s is outside of %s", entry.getName(), target));
+                }
+                if (entry.isDirectory() || !isIncluded(Paths.get(entry.getName()).normalize())) {
+                    continue;
+                }
+                File file = entryPath.toFile();
+                FileUtils.forceMkdir(file.getParentFile());
+                try (OutputStream outputStream = new FileOutputStream(file)) {
+                    IOUtils.copy(zipInputStream, outputStream);
+                }
+            }
+            if (rawZip != null) {
+                // central directory is not read by ZipInputStream, but it belongs to the stored zip
+                IOUtils.copy(source, new NullOutputStream());
+            }
+        }
+    }
+
+    private boolean isIncluded(Path entryPath) {
+        return (includes.isEmpty() || matches(includes, entryPath)) && !matches(excludes, entryPath);
+    }
+
+    private static boolean matches(List<PathMatcher> matchers, Path path) {
+        for (PathMatcher matcher : matchers) {
+            if (matcher.matches(path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<PathMatcher> toMatchers(String patterns) {
+        List<PathMatcher> result = new ArrayList<>();
+        if (StringUtils.isNotBlank(patterns)) {
+            for (String pattern : patterns.split(",")) {
+                if (StringUtils.isNotBlank(pattern)) {
+                    result.add(FileSystems.getDefault().getPathMatcher("glob:" + pattern.trim()));
+                }
+            }
+        }
+        return result;
+    }
+}
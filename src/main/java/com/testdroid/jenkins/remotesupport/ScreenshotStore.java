@@ -0,0 +1,183 @@
+package com.testdroid.jenkins.remotesupport;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Testdroid Run in Cloud plugin
+ *
+ * https://git@github.com/jenkinsci/testdroid-run-in-cloud
+ *
+ * Usage:
+ * Content addressed store of screenshots under the results path. Every downloaded screenshot is replaced with a hard
+ * link to the stored copy with the same SHA-256 digest, so identical screenshots of all devices and builds occupy
+ * disk space only once. Stored copies not linked from any result directory for the retention time are removed.
+ * The last use of a stored copy is kept as the modification time of a marker file next to it, as the copy itself
+ * shares its modification time with all screenshots linked to it. Where hard links are not supported screenshots are
+ * kept as they are.
+ *
+ * @author info@bitbar.com
+ */
+public class ScreenshotStore {
+
+    private static final Logger LOGGER = Logger.getLogger(ScreenshotStore.class.getName());
+
+    public static final String DIRECTORY_NAME = ".testdroid-screenshots";
+
+    private static final String USED_SUFFIX = ".used";
+
+    private final Path directory;
+
+    private final long retention;
+
+    /**
+     * @param retentionDays how long stored copies are kept after the last screenshot linked to them is removed
+     */
+    public ScreenshotStore(File resultsDir, int retentionDays) {
+        this.directory = new File(resultsDir, DIRECTORY_NAME).toPath();
+        this.retention = TimeUnit.DAYS.toMillis(retentionDays);
+    }
+
+    /**
+     * Replaces given downloaded screenshot with a link to the stored copy of the same content.
+     */
+    public void add(File screenshot, String digest) throws IOException {
+        Path blob = getBlob(digest);
+        Path file = screenshot.toPath();
+        for (int attempt = 1; ; attempt++) {
+            FileUtils.forceMkdir(blob.getParent().toFile());
+            try {
+                // first screenshot with this content becomes the stored copy
+                Files.createLink(blob, file);
+                markUsed(blob);
+                return;
+            } catch (FileAlreadyExistsException e) {
+                // already stored, link the screenshot to it below
+            } catch (UnsupportedOperationException e) {
+                LOGGER.log(Level.FINE, "Hard links are not supported, screenshots are not deduplicated", e);
+                return;
+            }
+            try {
+                link(file, blob);
+                return;
+            } catch (NoSuchFileException e) {
+                // stored copy was collected meanwhile, the screenshot becomes the new one
+                if (attempt > 1) {
+                    LOGGER.log(Level.FINE, String.format("Stored copy %s keeps disappearing, %s is kept as it is",
+                            blob, file), e);
+                    return;
+                }
+            }
+        }
+    }
+
+    private static void link(Path file, Path blob) throws IOException {
+        if (Files.isSameFile(blob, file)) {
+            markUsed(blob);
+            return;
+        }
+        Path link = file.resolveSibling(file.getFileName() + ".link");
+        Files.deleteIfExists(link);
+        Files.createLink(link, blob);
+        Files.move(link, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        markUsed(blob);
+    }
+
+    /**
+     * Removes stored copies which are not linked from anywhere else and were not used for the retention time.
+     *
+     * @return number of removed copies
+     */
+    public int collectGarbage() {
+        int removed = 0;
+        if (!Files.isDirectory(directory)) {
+            return removed;
+        }
+        long threshold = System.currentTimeMillis() - retention;
+        try (DirectoryStream<Path> prefixes = Files.newDirectoryStream(directory)) {
+            for (Path prefix : prefixes) {
+                try (DirectoryStream<Path> blobs = Files.newDirectoryStream(prefix)) {
+                    for (Path blob : blobs) {
+                        if (isMarker(blob)) {
+                            // a marker left behind by a removed copy
+                            if (!Files.exists(getBlob(blob))
+                                    && Files.getLastModifiedTime(blob).toMillis() < threshold) {
+                                Files.deleteIfExists(blob);
+                            }
+                        } else if (isUnreferenced(blob) && getLastUse(blob) < threshold) {
+                            Files.delete(blob);
+                            Files.deleteIfExists(getMarker(blob));
+                            removed++;
+                        }
+                    }
+                } catch (NoSuchFileException e) {
+                    // removed concurrently
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, String.format("Garbage collection of %s failed", directory), e);
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            // no link count on this file system, nothing can be proven unreferenced
+            LOGGER.log(Level.FINE, "Link count is not available, screenshot store is not collected", e);
+        }
+        return removed;
+    }
+
+    private static boolean isUnreferenced(Path blob) throws IOException {
+        return ((Number) Files.getAttribute(blob, "unix:nlink")).intValue() <= 1;
+    }
+
+    /**
+     * Retention counts from the last use. Touching the stored copy itself would change the modification time of
+     * every screenshot linked to it, also in older result directories.
+     */
+    private static void markUsed(Path blob) throws IOException {
+        Path marker = getMarker(blob);
+        try {
+            Files.createFile(marker);
+        } catch (FileAlreadyExistsException e) {
+            Files.setLastModifiedTime(marker, FileTime.fromMillis(System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * @return time of the last use, the modification time of the copy itself when it was stored before markers
+     * were kept
+     */
+    private static long getLastUse(Path blob) throws IOException {
+        try {
+            return Files.getLastModifiedTime(getMarker(blob)).toMillis();
+        } catch (NoSuchFileException e) {
+            return Files.getLastModifiedTime(blob).toMillis();
+        }
+    }
+
+    private static boolean isMarker(Path path) {
+        return path.getFileName().toString().endsWith(USED_SUFFIX);
+    }
+
+    private static Path getMarker(Path blob) {
+        return blob.resolveSibling(blob.getFileName() + USED_SUFFIX);
+    }
+
+    private static Path getBlob(Path marker) {
+        String name = marker.getFileName().toString();
+        return marker.resolveSibling(name.substring(0, name.length() - USED_SUFFIX.length()));
+    }
+
+    private Path getBlob(String digest) {
+        return directory.resolve(digest.substring(0, 2)).resolve(digest);
+    }
+}
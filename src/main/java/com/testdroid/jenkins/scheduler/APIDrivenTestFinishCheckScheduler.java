@@ -1,17 +1,9 @@
 package com.testdroid.jenkins.scheduler;
 
-import com.testdroid.api.APIException;
 import com.testdroid.api.model.APITestRun;
-import com.testdroid.api.model.APIUser;
-import com.testdroid.jenkins.Messages;
-import com.testdroid.jenkins.TestdroidCloudSettings;
+import com.testdroid.jenkins.utils.ResultWaiter;
 
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Testdroid Run in Cloud plugin
@@ -25,42 +17,34 @@ import java.util.logging.Logger;
  */
 public class APIDrivenTestFinishCheckScheduler implements TestRunFinishCheckScheduler {
 
-    private static final Logger LOGGER = Logger.getLogger(APIDrivenTestFinishCheckScheduler.class.getName());
+    private final long interval;
 
-    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+    private TestRunStatePoller.StateChangeListener listener;
 
-    private ScheduledFuture<?> taskHandle;
+    /**
+     * @param interval check interval in milliseconds or {@link TestRunStatePoller#ADAPTIVE}
+     */
+    public APIDrivenTestFinishCheckScheduler(long interval) {
+        this.interval = interval;
+    }
 
-    public void schedule(final Object object, final Long projectId, final Long testRunId) {
-        final Runnable beeper = () -> {
-            LOGGER.info(Messages.CHECK_FOR_TESTRUN_STATE(testRunId));
-            if (checkResult(projectId, testRunId)) {
-                synchronized (object) {
-                    object.notify();
-                }
+    public synchronized CompletableFuture<APITestRun> schedule(final Long projectId, final Long testRunId) {
+        CompletableFuture<APITestRun> result = ResultWaiter.getInstance().register(projectId, testRunId);
+        listener = testRun -> {
+            if (testRun.getState() == APITestRun.State.FINISHED) {
+                ResultWaiter.getInstance().complete(testRunId, testRun);
             }
         };
-        taskHandle = scheduler.scheduleAtFixedRate(beeper, 60, 60, TimeUnit.SECONDS);
-    }
-
-    public void cancel(final Long projectId, final Long testRunId) {
-        if (taskHandle != null) {
-            taskHandle.cancel(true);
-        }
+        TestRunStatePoller.getInstance().watch(projectId, testRunId, listener, interval);
+        return result;
     }
 
-    private boolean checkResult(final Long projectId, final Long testRunId) {
-        boolean result = false;
-        try {
-            APIUser user = TestdroidCloudSettings.descriptor().getUser();
-            APITestRun testRun = user.getProject(projectId).getTestRun(testRunId);
-            if (testRun.getState() == APITestRun.State.FINISHED) {
-                result = true;
-            }
-        } catch (APIException exc) {
-            LOGGER.log(Level.SEVERE, Messages.API_GET_TESTRUN_ERROR(testRunId), exc);
+    public synchronized void cancel(final Long projectId, final Long testRunId) {
+        if (listener != null) {
+            TestRunStatePoller.getInstance().unwatch(testRunId, listener);
+            ResultWaiter.getInstance().unregister(testRunId);
+            listener = null;
         }
-        return result;
     }
 
 }
@@ -0,0 +1,50 @@
+package com.testdroid.jenkins.scheduler;
+
+/**
+ * Testdroid Run in Cloud plugin
+ *
+ * https://git@github.com/jenkinsci/testdroid-run-in-cloud
+ *
+ * Usage:
+ * Computes delay before next state check of a test run from estimated remaining run time. Remaining time is
+ * estimated from the share of finished device sessions and from historical duration of test runs in the project,
+ * the more optimistic estimate wins. Next check happens after half of the estimated remaining time, bounded by
+ * floor and ceiling.
+ *
+ * @author info@bitbar.com
+ */
+public class AdaptivePollingInterval {
+
+    private final long floor;
+
+    private final long ceiling;
+
+    public AdaptivePollingInterval(long floor, long ceiling) {
+        this.floor = floor;
+        this.ceiling = Math.max(floor, ceiling);
+    }
+
+    /**
+     * @param age                how long the test run exists, in milliseconds
+     * @param finishedSessions   number of finished device sessions, may be null when unknown
+     * @param totalSessions      number of all device sessions, may be null when unknown
+     * @param historicalDuration usual duration of test runs in the project, may be null when unknown
+     * @return delay before next check in milliseconds
+     */
+    public long getInterval(long age, Integer finishedSessions, Integer totalSessions, Long historicalDuration) {
+        long remaining = -1;
+        if (finishedSessions != null && totalSessions != null && totalSessions > 0 && finishedSessions > 0) {
+            double progress = Math.min(1.0, (double) finishedSessions / totalSessions);
+            remaining = (long) (age * (1 - progress) / progress);
+        }
+        if (historicalDuration != null && historicalDuration > age) {
+            long historicalRemaining = historicalDuration - age;
+            remaining = remaining < 0 ? historicalRemaining : Math.min(remaining, historicalRemaining);
+        }
+        if (remaining < 0) {
+            // nothing known, the longer the run already takes, the longer it probably continues
+            remaining = age;
+        }
+        return Math.max(floor, Math.min(ceiling, remaining / 2));
+    }
+}
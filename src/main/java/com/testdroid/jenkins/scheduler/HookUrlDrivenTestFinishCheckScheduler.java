@@ -1,7 +1,10 @@
 package com.testdroid.jenkins.scheduler;
 
+import com.testdroid.api.model.APITestRun;
 import com.testdroid.jenkins.utils.ResultWaiter;
 
+import java.util.concurrent.CompletableFuture;
+
 /**
  * Testdroid Run in Cloud plugin
  *
@@ -14,12 +17,18 @@ import com.testdroid.jenkins.utils.ResultWaiter;
  */
 public class HookUrlDrivenTestFinishCheckScheduler implements TestRunFinishCheckScheduler {
 
-    public void schedule(final Object object, final Long projectId, final Long testRunId) {
-        ResultWaiter.getInstance().putToWaitList(testRunId, object);
+    private boolean scheduled;
+
+    public synchronized CompletableFuture<APITestRun> schedule(final Long projectId, final Long testRunId) {
+        scheduled = true;
+        return ResultWaiter.getInstance().register(projectId, testRunId);
     }
 
-    public void cancel(final Long projectId, final Long testRunId) {
-        ResultWaiter.getInstance().removeFromWaitList(testRunId);
+    public synchronized void cancel(final Long projectId, final Long testRunId) {
+        if (scheduled) {
+            scheduled = false;
+            ResultWaiter.getInstance().unregister(testRunId);
+        }
     }
 
 }
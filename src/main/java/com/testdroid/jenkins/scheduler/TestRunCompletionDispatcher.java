@@ -0,0 +1,125 @@
+package com.testdroid.jenkins.scheduler;
+
+import com.testdroid.api.APIException;
+import com.testdroid.api.model.APIProject;
+import com.testdroid.api.model.APITestRun;
+import com.testdroid.jenkins.TestdroidCloudSettings;
+import com.testdroid.jenkins.utils.ResultWaiter;
+import com.testdroid.jenkins.utils.RetryPolicy;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Testdroid Run in Cloud plugin
+ *
+ * https://git@github.com/jenkinsci/testdroid-run-in-cloud
+ *
+ * Usage:
+ * Takes test run finish notifications from the hook URL endpoint and completes them in the background, so the
+ * request thread returns at once. Repeated deliveries of the same notification are dropped. Before a waiting build
+ * is woken up the finished test run is fetched, so the build continues with data already loaded.
+ *
+ * @author info@bitbar.com
+ */
+public class TestRunCompletionDispatcher {
+
+    private static final Logger LOGGER = Logger.getLogger(TestRunCompletionDispatcher.class.getName());
+
+    // repeated deliveries of a notification within this time are ignored
+    private static final long DUPLICATE_TTL = TimeUnit.MINUTES.toMillis(10);
+
+    private static final long PURGE_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+
+    private static final int THREADS = 4;
+
+    private static final int QUEUE_CAPACITY = 1000;
+
+    private static final TestRunCompletionDispatcher INSTANCE = new TestRunCompletionDispatcher();
+
+    private final ConcurrentMap<Long, Long> deliveries = new ConcurrentHashMap<>();
+
+    private final ThreadPoolExecutor executor;
+
+    private volatile long lastPurge = System.currentTimeMillis();
+
+    private TestRunCompletionDispatcher() {
+        AtomicInteger threadNumber = new AtomicInteger();
+        executor = new ThreadPoolExecutor(THREADS, THREADS, 1, TimeUnit.MINUTES,
+                new LinkedBlockingQueue<>(QUEUE_CAPACITY), runnable -> {
+            Thread thread = new Thread(runnable,
+                    "Testdroid test run completion dispatcher " + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    public static TestRunCompletionDispatcher getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Hands the notification over for completion without blocking.
+     *
+     * @return false if the same notification was already received
+     */
+    public boolean dispatch(Long testRunId) {
+        long now = System.currentTimeMillis();
+        purgeDeliveries(now);
+        Long previous = deliveries.putIfAbsent(testRunId, now);
+        if (previous != null && now - previous <= DUPLICATE_TTL) {
+            return false;
+        }
+        if (previous != null) {
+            deliveries.put(testRunId, now);
+        }
+        try {
+            executor.execute(() -> complete(testRunId));
+        } catch (RejectedExecutionException e) {
+            // queue is full, wake the build without the prefetched test run rather than losing the notification
+            LOGGER.log(Level.FINE, "Completion dispatcher is saturated", e);
+            ResultWaiter.getInstance().complete(testRunId, null);
+        }
+        return true;
+    }
+
+    /**
+     * Forgets the notification of given test run, so that the next one is not dropped as repeated. Used when the
+     * notification came before the test run finished.
+     */
+    public void forget(Long testRunId) {
+        deliveries.remove(testRunId);
+    }
+
+    private void complete(Long testRunId) {
+        APITestRun testRun = null;
+        Long projectId = ResultWaiter.getInstance().getAwaitedProjectId(testRunId);
+        if (projectId != null) {
+            try {
+                APIProject project = RetryPolicy.POLLING.execute("Getting project", null,
+                        () -> TestdroidCloudSettings.descriptor().getUser().getProject(projectId));
+                testRun = RetryPolicy.POLLING.execute("Getting test run", null, () -> project.getTestRun(testRunId));
+            } catch (APIException | RuntimeException e) {
+                // the build refreshes the test run itself
+                LOGGER.log(Level.FINE, String.format("Cannot prefetch test run %d", testRunId), e);
+            }
+        }
+        ResultWaiter.getInstance().complete(testRunId, testRun);
+    }
+
+    private void purgeDeliveries(long now) {
+        if (now - lastPurge < PURGE_INTERVAL) {
+            return;
+        }
+        lastPurge = now;
+        deliveries.values().removeIf(received -> now - received > DUPLICATE_TTL);
+    }
+}
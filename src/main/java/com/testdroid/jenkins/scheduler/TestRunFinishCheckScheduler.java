@@ -1,5 +1,10 @@
 package com.testdroid.jenkins.scheduler;
 
+import com.testdroid.api.model.APITestRun;
+import com.testdroid.jenkins.utils.ResultWaiter;
+
+import java.util.concurrent.CompletableFuture;
+
 /**
  * Testdroid Run in Cloud plugin
  *
@@ -12,8 +17,23 @@ package com.testdroid.jenkins.scheduler;
  */
 public interface TestRunFinishCheckScheduler {
 
-    void schedule(final Object object, final Long projectId, final Long testRunId);
+    /**
+     * @return future completed when the test run finishes, with the finished test run if it is known
+     */
+    CompletableFuture<APITestRun> schedule(final Long projectId, final Long testRunId);
 
     void cancel(final Long projectId, final Long testRunId);
 
+    /**
+     * Keeps waiting after the finish was signalled too early, e.g. by a hook called before the test run finished.
+     *
+     * @param premature future returned by {@link #schedule} which completed too early
+     * @return future to wait on instead
+     */
+    default CompletableFuture<APITestRun> resume(
+            final Long projectId, final Long testRunId, final CompletableFuture<APITestRun> premature) {
+        TestRunCompletionDispatcher.getInstance().forget(testRunId);
+        return ResultWaiter.getInstance().reopen(projectId, testRunId, premature);
+    }
+
 }
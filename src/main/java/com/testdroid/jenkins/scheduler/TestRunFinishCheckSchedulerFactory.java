@@ -1,7 +1,10 @@
 package com.testdroid.jenkins.scheduler;
 
+import com.testdroid.jenkins.TestdroidCloudSettings;
 import com.testdroid.jenkins.model.TestRunStateCheckMethod;
 
+import java.util.concurrent.TimeUnit;
+
 /**
  * Testdroid Run in Cloud plugin
  *
@@ -18,7 +21,15 @@ public class TestRunFinishCheckSchedulerFactory {
         TestRunFinishCheckScheduler result;
         switch (method) {
             case API_CALL:
-                result = new APIDrivenTestFinishCheckScheduler();
+                result = new APIDrivenTestFinishCheckScheduler(TestRunStatePoller.FIXED_INTERVAL);
+                break;
+            case ADAPTIVE_API_CALL:
+                result = new APIDrivenTestFinishCheckScheduler(TestRunStatePoller.ADAPTIVE);
+                break;
+            case HYBRID:
+                // hook completes the same future, polling is only a safety net for a lost hook
+                result = new APIDrivenTestFinishCheckScheduler(
+                        TimeUnit.SECONDS.toMillis(TestdroidCloudSettings.descriptor().getPollingCeiling()));
                 break;
             case HOOK_URL:
             default:
@@ -0,0 +1,245 @@
+package com.testdroid.jenkins.scheduler;
+
+import com.testdroid.api.APIException;
+import com.testdroid.api.APIQueryBuilder;
+import com.testdroid.api.APISort;
+import com.testdroid.api.model.APIDeviceSession;
+import com.testdroid.api.model.APIProject;
+import com.testdroid.api.model.APITestRun;
+import com.testdroid.api.model.APIUser;
+import com.testdroid.jenkins.Messages;
+import com.testdroid.jenkins.TestdroidCloudSettings;
+import com.testdroid.jenkins.utils.DeviceSessionStates;
+import com.testdroid.jenkins.utils.RetryPolicy;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Testdroid Run in Cloud plugin
+ *
+ * https://git@github.com/jenkinsci/testdroid-run-in-cloud
+ *
+ * Usage:
+ * Single polling engine for all builds waiting for their test runs. On every tick states of all watched test runs
+ * which are due are fetched together, with one request per project, and only listeners of test runs whose state
+ * changed are notified. Test runs are checked either in a fixed interval, or adaptively based on their progress.
+ *
+ * @author info@bitbar.com
+ */
+public class TestRunStatePoller {
+
+    private static final Logger LOGGER = Logger.getLogger(TestRunStatePoller.class.getName());
+
+    private static final long TICK = TimeUnit.SECONDS.toMillis(5);
+
+    /**
+     * Check interval of the API_CALL method
+     */
+    public static final long FIXED_INTERVAL = TimeUnit.SECONDS.toMillis(60);
+
+    /**
+     * Interval value meaning that the test run is checked adaptively
+     */
+    public static final long ADAPTIVE = 0;
+
+    // weight of the latest finished test run in historical duration of a project
+    private static final double HISTORY_WEIGHT = 0.3;
+
+    // latest test runs of a project fetched at once, in addition to the number of watched ones
+    private static final int BATCH_MARGIN = 20;
+
+    // newest test runs first, so the batch contains the ones builds are waiting for
+    private static final APISort.SortItem NEWEST_FIRST = new APISort.SortItem("id", APISort.Type.DESC);
+
+    private static final TestRunStatePoller INSTANCE = new TestRunStatePoller();
+
+    private final ConcurrentMap<Long, WatchedTestRun> watchedTestRuns = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<Long, Long> historicalDurations = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Testdroid test run state poller");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public interface StateChangeListener {
+
+        void stateChanged(APITestRun testRun);
+    }
+
+    private TestRunStatePoller() {
+        executor.scheduleWithFixedDelay(this::poll, TICK, TICK, TimeUnit.MILLISECONDS);
+    }
+
+    public static TestRunStatePoller getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param interval check interval in milliseconds or {@link #ADAPTIVE}. When the same test run is watched with
+     *                 several intervals, the shortest fixed one is used
+     */
+    public void watch(Long projectId, Long testRunId, StateChangeListener listener, long interval) {
+        watchedTestRuns.compute(testRunId, (id, watched) -> {
+            WatchedTestRun result = watched;
+            if (result == null) {
+                result = new WatchedTestRun(projectId, testRunId, interval);
+                result.nextCheck = System.currentTimeMillis() + (interval == ADAPTIVE ? getAdaptiveInterval()
+                        .getInterval(0, null, null, historicalDurations.get(projectId)) : interval);
+            } else if (interval != ADAPTIVE) {
+                result.interval = result.interval == ADAPTIVE ? interval : Math.min(result.interval, interval);
+            }
+            result.listeners.add(listener);
+            return result;
+        });
+    }
+
+    public void unwatch(Long testRunId, StateChangeListener listener) {
+        watchedTestRuns.computeIfPresent(testRunId, (id, watched) -> {
+            watched.listeners.remove(listener);
+            return watched.listeners.isEmpty() ? null : watched;
+        });
+    }
+
+    private void poll() {
+        if (watchedTestRuns.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Map<Long, List<WatchedTestRun>> byProject = new HashMap<>();
+        for (WatchedTestRun watched : watchedTestRuns.values()) {
+            if (watched.nextCheck <= now) {
+                byProject.computeIfAbsent(watched.projectId, id -> new ArrayList<>()).add(watched);
+            }
+        }
+        if (byProject.isEmpty()) {
+            return;
+        }
+        try {
+            APIUser user = TestdroidCloudSettings.descriptor().getUser();
+            for (Map.Entry<Long, List<WatchedTestRun>> entry : byProject.entrySet()) {
+                pollProject(user, entry.getKey(), entry.getValue());
+            }
+        } catch (APIException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to poll test run states", e);
+        }
+    }
+
+    private void pollProject(APIUser user, Long projectId, List<WatchedTestRun> watchedInProject) {
+        try {
+            APIProject project = RetryPolicy.POLLING.execute("Getting project", null,
+                    () -> user.getProject(projectId));
+            int limit = watchedInProject.size() + BATCH_MARGIN;
+            List<APITestRun> latestTestRuns = RetryPolicy.POLLING.execute("Getting test runs", null,
+                    () -> project.getTestRunsResource(new APIQueryBuilder().sort(APITestRun.class, NEWEST_FIRST)
+                            .limit(limit)).getEntity().getData());
+            Map<Long, APITestRun> latestById = new HashMap<>();
+            for (APITestRun testRun : latestTestRuns) {
+                latestById.put(testRun.getId(), testRun);
+            }
+
+            List<Long> fetchedSeparately = new ArrayList<>();
+            for (WatchedTestRun watched : watchedInProject) {
+                LOGGER.fine(Messages.CHECK_FOR_TESTRUN_STATE(watched.testRunId));
+                APITestRun testRun = latestById.get(watched.testRunId);
+                if (testRun == null) {
+                    // not among the latest ones, has to be fetched separately
+                    fetchedSeparately.add(watched.testRunId);
+                    testRun = RetryPolicy.POLLING.execute(Messages.CHECK_FOR_TESTRUN_STATE(watched.testRunId),
+                            null, () -> project.getTestRun(watched.testRunId));
+                }
+                if (testRun.getState() != watched.lastState) {
+                    watched.lastState = testRun.getState();
+                    if (testRun.getState() == APITestRun.State.FINISHED) {
+                        recordDuration(projectId, testRun);
+                    }
+                    for (StateChangeListener listener : watched.listeners) {
+                        listener.stateChanged(testRun);
+                    }
+                }
+                watched.nextCheck = System.currentTimeMillis() + getNextInterval(watched, testRun);
+            }
+            if (!fetchedSeparately.isEmpty()) {
+                LOGGER.log(Level.INFO, String.format("Test runs %s of project %d are not among its %d latest ones, " +
+                        "their states were fetched one by one", fetchedSeparately, projectId, limit));
+            }
+        } catch (APIException | RuntimeException e) {
+            LOGGER.log(Level.SEVERE, String.format("Failed to poll test runs of project %d", projectId), e);
+        }
+    }
+
+    private long getNextInterval(WatchedTestRun watched, APITestRun testRun) {
+        if (watched.interval != ADAPTIVE) {
+            return watched.interval;
+        }
+        long age = testRun.getCreateTime() != null ?
+                Math.max(0, System.currentTimeMillis() - testRun.getCreateTime().getTime()) : 0;
+        Integer finishedSessions = null;
+        Integer totalSessions = null;
+        if (testRun.getState() == APITestRun.State.RUNNING) {
+            try {
+                List<APIDeviceSession> deviceSessions = RetryPolicy.POLLING.execute("Getting device sessions", null,
+                        () -> testRun.getDeviceSessionsResource(new APIQueryBuilder().limit(Integer.MAX_VALUE))
+                                .getEntity().getData());
+                totalSessions = deviceSessions.size();
+                finishedSessions = 0;
+                for (APIDeviceSession deviceSession : deviceSessions) {
+                    if (DeviceSessionStates.isFinished(deviceSession)) {
+                        finishedSessions++;
+                    }
+                }
+            } catch (APIException e) {
+                LOGGER.log(Level.FINE, "Cannot get progress of test run " + testRun.getId(), e);
+            }
+        }
+        return getAdaptiveInterval().getInterval(age, finishedSessions, totalSessions,
+                historicalDurations.get(watched.projectId));
+    }
+
+    private void recordDuration(Long projectId, APITestRun testRun) {
+        if (testRun.getCreateTime() != null) {
+            long duration = System.currentTimeMillis() - testRun.getCreateTime().getTime();
+            historicalDurations.merge(projectId, duration,
+                    (previous, latest) -> (long) (previous * (1 - HISTORY_WEIGHT) + latest * HISTORY_WEIGHT));
+        }
+    }
+
+    private static AdaptivePollingInterval getAdaptiveInterval() {
+        TestdroidCloudSettings.DescriptorImpl descriptor = TestdroidCloudSettings.descriptor();
+        return new AdaptivePollingInterval(TimeUnit.SECONDS.toMillis(descriptor.getPollingFloor()),
+                TimeUnit.SECONDS.toMillis(descriptor.getPollingCeiling()));
+    }
+
+    private static class WatchedTestRun {
+
+        private final Long projectId;
+
+        private final Long testRunId;
+
+        private final List<StateChangeListener> listeners = new CopyOnWriteArrayList<>();
+
+        private volatile APITestRun.State lastState;
+
+        private volatile long nextCheck;
+
+        private volatile long interval;
+
+        private WatchedTestRun(Long projectId, Long testRunId, long interval) {
+            this.projectId = projectId;
+            this.testRunId = testRunId;
+            this.interval = interval;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.testdroid.jenkins.utils;
+
+import com.testdroid.api.model.APIDeviceSession;
+
+/**
+ * Testdroid Run in Cloud plugin
+ *
+ * https://git@github.com/jenkinsci/testdroid-run-in-cloud
+ *
+ * Usage:
+ * Tells states of device sessions apart. Holds no state, so it can be used on agents too.
+ *
+ * @author info@bitbar.com
+ */
+public class DeviceSessionStates {
+
+    private DeviceSessionStates() {
+    }
+
+    /**
+     * @return true if the device session won't change anymore, whether it succeeded or not
+     */
+    public static boolean isFinished(APIDeviceSession deviceSession) {
+        return deviceSession.getState() != APIDeviceSession.State.WAITING
+                && deviceSession.getState() != APIDeviceSession.State.RUNNING;
+    }
+}
@@ -0,0 +1,92 @@
+package com.testdroid.jenkins.utils;
+
+import com.testdroid.jenkins.remotesupport.FileDigestCalculator;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Testdroid Run in Cloud plugin
+ *
+ * https://git@github.com/jenkinsci/testdroid-run-in-cloud
+ *
+ * Usage:
+ * Remembers fingerprints of state last synchronized to the cloud, e.g. test run parameters of a project, so that
+ * synchronizing the same state again can be skipped without asking the cloud. Fingerprints expire, so changes made
+ * in the cloud outside of Jenkins are picked up eventually.
+ *
+ * @author info@bitbar.com
+ */
+public class FingerprintCache {
+
+    private static final long TTL = TimeUnit.MINUTES.toMillis(10);
+
+    private static final FingerprintCache INSTANCE = new FingerprintCache();
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    public static FingerprintCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param key   what was synchronized, e.g. "parameters:123"
+     * @param state canonical text form of the synchronized state
+     * @return true if the same state was synchronized under given key recently
+     */
+    public boolean isSynchronized(String key, String state) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return false;
+        }
+        if (System.currentTimeMillis() - entry.created > TTL) {
+            entries.remove(key, entry);
+            return false;
+        }
+        return entry.fingerprint.equals(fingerprint(state));
+    }
+
+    /**
+     * Encodes given parts as one state, each prefixed by its length, so that no two different lists of parts give the
+     * same state whatever characters they contain.
+     */
+    public static String toState(Iterable<?> parts) {
+        StringBuilder result = new StringBuilder();
+        for (Object part : parts) {
+            String text = String.valueOf(part);
+            result.append(text.length()).append(':').append(text);
+        }
+        return result.toString();
+    }
+
+    public void put(String key, String state) {
+        entries.put(key, new Entry(fingerprint(state)));
+    }
+
+    public void invalidate(String key) {
+        entries.remove(key);
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    private static String fingerprint(String state) {
+        MessageDigest digest = FileDigestCalculator.newDigest();
+        return FileDigestCalculator.toHex(digest.digest(state.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static class Entry {
+
+        private final String fingerprint;
+
+        private final long created = System.currentTimeMillis();
+
+        private Entry(String fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+    }
+}
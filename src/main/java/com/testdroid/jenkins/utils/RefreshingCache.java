@@ -0,0 +1,178 @@
+package com.testdroid.jenkins.utils;
+
+import com.testdroid.api.APIException;
+
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Testdroid Run in Cloud plugin
+ *
+ * https://git@github.com/jenkinsci/testdroid-run-in-cloud
+ *
+ * Usage:
+ * Keeps a value loaded from the cloud, e.g. the list of projects shown on the job configuration page. Only the very
+ * first read waits for the cloud, later reads get the current value immediately, a stale one triggers a refresh in
+ * the background. While the value is being read it is also refreshed on a schedule, a value nobody reads is left
+ * alone. Concurrent loads are never started, all waiting readers share one.
+ *
+ * @author info@bitbar.com
+ */
+public class RefreshingCache<T> {
+
+    private static final Logger LOGGER = Logger.getLogger(RefreshingCache.class.getName());
+
+    // values not read for this long are not refreshed anymore
+    private static final long IDLE_TIMEOUT = TimeUnit.MINUTES.toMillis(30);
+
+    private static final Set<RefreshingCache<?>> INSTANCES = ConcurrentHashMap.newKeySet();
+
+    private static final ScheduledExecutorService EXECUTOR = Executors.newScheduledThreadPool(2, runnable -> {
+        Thread thread = new Thread(runnable, "Testdroid cache refresher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String name;
+
+    private final long refreshInterval;
+
+    private final RetryPolicy.RetryableCall<T, APIException> loader;
+
+    private volatile Value<T> value;
+
+    private volatile long lastAccess;
+
+    private CompletableFuture<T> loading;
+
+    private ScheduledFuture<?> refreshing;
+
+    // incremented by invalidation, so loads started before it are not stored
+    private long generation;
+
+    /**
+     * @param name            used in log messages
+     * @param refreshInterval how old a value can get before it is refreshed, in milliseconds
+     * @param loader          loads a fresh value from the cloud
+     */
+    public RefreshingCache(String name, long refreshInterval, RetryPolicy.RetryableCall<T, APIException> loader) {
+        this.name = name;
+        this.refreshInterval = refreshInterval;
+        this.loader = loader;
+        INSTANCES.add(this);
+    }
+
+    /**
+     * Forgets values of all caches, e.g. when credentials changed.
+     */
+    public static void invalidateAll() {
+        for (RefreshingCache<?> cache : INSTANCES) {
+            cache.invalidate();
+        }
+    }
+
+    /**
+     * @return current value, possibly stale. Waits for the cloud only when no value was loaded yet
+     */
+    public T get() throws APIException {
+        long now = System.currentTimeMillis();
+        lastAccess = now;
+        scheduleRefresh();
+        Value<T> current = value;
+        if (current == null) {
+            return await(load());
+        }
+        if (now - current.loaded > refreshInterval) {
+            load();
+        }
+        return current.data;
+    }
+
+    public synchronized void invalidate() {
+        generation++;
+        value = null;
+        loading = null;
+    }
+
+    private synchronized CompletableFuture<T> load() {
+        if (loading != null) {
+            return loading;
+        }
+        CompletableFuture<T> result = new CompletableFuture<>();
+        long loadedGeneration = generation;
+        loading = result;
+        EXECUTOR.execute(() -> {
+            try {
+                T data = loader.call();
+                synchronized (this) {
+                    if (generation == loadedGeneration) {
+                        value = new Value<>(data);
+                    }
+                }
+                result.complete(data);
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, String.format("Cannot refresh %s", name), e);
+                result.completeExceptionally(e);
+            } finally {
+                synchronized (this) {
+                    if (loading == result) {
+                        loading = null;
+                    }
+                }
+            }
+        });
+        return result;
+    }
+
+    private synchronized void scheduleRefresh() {
+        if (refreshing == null) {
+            refreshing = EXECUTOR.scheduleWithFixedDelay(this::refreshIfRead, refreshInterval, refreshInterval,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void refreshIfRead() {
+        if (System.currentTimeMillis() - lastAccess > IDLE_TIMEOUT) {
+            refreshing.cancel(false);
+            refreshing = null;
+        } else {
+            load();
+        }
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws APIException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof APIException) {
+                throw (APIException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new APIException(String.valueOf(e.getCause()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new APIException("Interrupted while loading from the cloud");
+        }
+    }
+
+    private static class Value<T> {
+
+        private final T data;
+
+        private final long loaded = System.currentTimeMillis();
+
+        private Value(T data) {
+            this.data = data;
+        }
+    }
+}
@@ -1,7 +1,14 @@
 package com.testdroid.jenkins.utils;
 
-import java.util.HashMap;
-import java.util.Map;
+import com.testdroid.api.model.APITestRun;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Testdroid Run in Cloud plugin
@@ -9,38 +16,157 @@ import java.util.Map;
  * https://git@github.com/jenkinsci/testdroid-run-in-cloud
  *
  * Usage:
- * @TODO
+ * Keeps one completion future per test run. Builds register to get the future and wait on it, hook and poller
+ * complete it. Completion arriving before any build registers is remembered for a while, so it is not lost, and any
+ * number of builds can wait for the same test run. Only a limited number of such unclaimed completions is kept, the
+ * hook URL accepts ids of any test run.
  *
  * @author info@bitbar.com
  */
 public class ResultWaiter {
 
-    private static ResultWaiter instance;
+    private static final Logger LOGGER = Logger.getLogger(ResultWaiter.class.getName());
+
+    // completions nobody waits for are forgotten after this time
+    private static final long UNCLAIMED_COMPLETION_TTL = TimeUnit.MINUTES.toMillis(10);
+
+    private static final long PURGE_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+
+    // completions of test runs no build registered for, above this count new ones are dropped
+    private static final int MAX_UNCLAIMED_COMPLETIONS = 1000;
+
+    private static final ResultWaiter INSTANCE = new ResultWaiter();
+
+    private final ConcurrentMap<Long, Completion> completions = new ConcurrentHashMap<>();
+
+    private final AtomicInteger unclaimed = new AtomicInteger();
 
-    private Map<Long, Object> runIdWaitingObjectsMap = new HashMap<Long, Object>();
+    private volatile long lastPurge = System.currentTimeMillis();
 
     public static ResultWaiter getInstance() {
-        if (instance == null) {
-            instance = new ResultWaiter();
-        }
+        return INSTANCE;
+    }
+
+    /**
+     * Registers a waiter of given test run, each call must be paired with {@link #unregister(Long)}.
+     *
+     * @return future completed when the test run finishes, with the finished test run if it is known
+     */
+    public CompletableFuture<APITestRun> register(Long projectId, Long testRunId) {
+        return completions.compute(testRunId, (id, completion) -> {
+            Completion result = completion != null ? completion : new Completion();
+            if (result.unclaimed) {
+                result.unclaimed = false;
+                unclaimed.decrementAndGet();
+            }
+            result.projectId = projectId;
+            result.waiters++;
+            return result;
+        }).future;
+    }
+
+    public void unregister(Long testRunId) {
+        // a completion is kept after its last waiter left, another build may still register for the same test run
+        completions.computeIfPresent(testRunId,
+                (id, completion) -> --completion.waiters > 0 || completion.future.isDone() ? completion : null);
+    }
 
-        return instance;
+    /**
+     * Replaces a completion which turned out to be premature, e.g. a hook called before the test run finished. Waiters
+     * stay registered.
+     *
+     * @param premature future which was completed too early
+     * @return future to wait on instead, shared by all waiters which reopen the same completion
+     */
+    public CompletableFuture<APITestRun> reopen(
+            Long projectId, Long testRunId, CompletableFuture<APITestRun> premature) {
+        return completions.compute(testRunId, (id, completion) -> {
+            if (completion != null && completion.future != premature) {
+                // already reopened by another waiter
+                return completion;
+            }
+            Completion result = new Completion();
+            result.projectId = projectId;
+            result.waiters = completion != null ? completion.waiters : 1;
+            return result;
+        }).future;
     }
 
-    public void removeFromWaitList(Long testRunId) {
-        runIdWaitingObjectsMap.remove(testRunId);
+    /**
+     * @return project of given test run if a build still waits for it to finish, null otherwise
+     */
+    public Long getAwaitedProjectId(Long testRunId) {
+        Completion completion = completions.get(testRunId);
+        return completion != null && !completion.future.isDone() ? completion.projectId : null;
     }
 
-    public void putToWaitList(Long testRunId, Object waitingObject) {
-        runIdWaitingObjectsMap.put(testRunId, waitingObject);
+    /**
+     * Marks given test run finished.
+     *
+     * @param testRun finished test run, or null when only its id is known
+     */
+    public void complete(Long testRunId, APITestRun testRun) {
+        purgeExpired(System.currentTimeMillis());
+        completions.compute(testRunId, (id, completion) -> {
+            Completion result = completion;
+            if (result == null) {
+                if (unclaimed.get() >= MAX_UNCLAIMED_COMPLETIONS) {
+                    LOGGER.log(Level.FINE, String.format("Too many unclaimed completions, dropping test run %d",
+                            testRunId));
+                    return null;
+                }
+                unclaimed.incrementAndGet();
+                result = new Completion();
+                result.unclaimed = true;
+            }
+            result.complete(testRun);
+            return result;
+        });
     }
 
-    public void notifyWaitingObject(Long testRunId) {
-        Object waitingObject = runIdWaitingObjectsMap.get(testRunId);
-        if (waitingObject != null) {
-            synchronized (waitingObject) {
-                waitingObject.notify();
+    /**
+     * Forgets completions nobody waits for anymore, at most once per purge interval.
+     */
+    private void purgeExpired(long now) {
+        if (now - lastPurge < PURGE_INTERVAL) {
+            return;
+        }
+        lastPurge = now;
+        for (Long testRunId : completions.keySet()) {
+            completions.computeIfPresent(testRunId, (id, completion) -> {
+                if (completion.waiters > 0 || !completion.isExpired()) {
+                    return completion;
+                }
+                if (completion.unclaimed) {
+                    unclaimed.decrementAndGet();
+                }
+                return null;
+            });
+        }
+    }
+
+    private static class Completion {
+
+        private final CompletableFuture<APITestRun> future = new CompletableFuture<>();
+
+        // guarded by the map, only changed inside compute methods
+        private int waiters;
+
+        // completed before any build registered, guarded by the map as well
+        private boolean unclaimed;
+
+        private volatile Long projectId;
+
+        private volatile long completed;
+
+        private void complete(APITestRun testRun) {
+            if (future.complete(testRun)) {
+                completed = System.currentTimeMillis();
             }
         }
+
+        private boolean isExpired() {
+            return completed > 0 && System.currentTimeMillis() - completed > UNCLAIMED_COMPLETION_TTL;
+        }
     }
 }
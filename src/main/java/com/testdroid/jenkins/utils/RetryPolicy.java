@@ -0,0 +1,148 @@
+package com.testdroid.jenkins.utils;
+
+import com.testdroid.api.APIException;
+import com.testdroid.jenkins.Messages;
+import hudson.Util;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Testdroid Run in Cloud plugin
+ *
+ * https://git@github.com/jenkinsci/testdroid-run-in-cloud
+ *
+ * Usage:
+ * Retries calls to the cloud which failed with a temporary problem (I/O error, 5xx, 408 or 429 status). Delay
+ * between attempts grows exponentially and is randomized, so builds failing at the same moment don't retry in
+ * lockstep. Retrying stops after the maximum number of attempts or when the total delay between attempts would
+ * exceed the deadline. Time spent in the attempts themselves doesn't count, so a long upload which failed late is
+ * still retried. Authorization errors and other 4xx statuses are not retried.
+ *
+ * @author info@bitbar.com
+ */
+public class RetryPolicy implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger LOGGER = Logger.getLogger(RetryPolicy.class.getName());
+
+    /**
+     * For short API calls, e.g. getting or updating configuration
+     */
+    public static final RetryPolicy DEFAULT = new RetryPolicy(5, TimeUnit.SECONDS.toMillis(1),
+            TimeUnit.SECONDS.toMillis(30), TimeUnit.MINUTES.toMillis(2));
+
+    /**
+     * For uploads and downloads of files
+     */
+    public static final RetryPolicy TRANSFER = new RetryPolicy(5, TimeUnit.SECONDS.toMillis(2),
+            TimeUnit.MINUTES.toMillis(1), TimeUnit.MINUTES.toMillis(10));
+
+    /**
+     * For test run state checks, which are repeated anyway
+     */
+    public static final RetryPolicy POLLING = new RetryPolicy(3, TimeUnit.SECONDS.toMillis(1),
+            TimeUnit.SECONDS.toMillis(10), TimeUnit.SECONDS.toMillis(30));
+
+    private final int maxAttempts;
+
+    private final long initialDelay;
+
+    private final long maxDelay;
+
+    private final long deadline;
+
+    public RetryPolicy(int maxAttempts, long initialDelay, long maxDelay, long deadline) {
+        this.maxAttempts = maxAttempts;
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+        this.deadline = deadline;
+    }
+
+    public interface RetryableCall<T, E extends Exception> {
+
+        T call() throws E;
+    }
+
+    /**
+     * Runs given call until it succeeds, fails with a non-retryable exception or the policy is exhausted.
+     *
+     * @param description what is being done, for log messages
+     * @param logger      build log to report retries to, may be null
+     * @param call        the call
+     * @return result of the call
+     * @throws E last failure of the call, also when the thread was interrupted while waiting for next attempt
+     */
+    @SuppressWarnings("unchecked")
+    public <T, E extends Exception> T execute(String description, PrintStream logger, RetryableCall<T, E> call)
+            throws E {
+        long waited = 0;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return call.call();
+            } catch (Exception e) {
+                long delay = getDelay(attempt);
+                if (!isRetryable(e) || attempt >= maxAttempts
+                        || waited + delay > deadline) {
+                    throw (E) e;
+                }
+                String message = String.format(Messages.S_FAILED_S_RETRYING_IN_S(), description,
+                        e.getMessage(), Util.getTimeSpanString(delay));
+                if (logger != null) {
+                    logger.println(message);
+                }
+                LOGGER.log(Level.INFO, message, e);
+                try {
+                    Thread.sleep(delay);
+                    waited += delay;
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw (E) e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Exponential backoff with jitter: random delay between half and the whole of the exponentially growing ceiling.
+     */
+    long getDelay(int attempt) {
+        long ceiling = Math.min(maxDelay, initialDelay << Math.min(attempt - 1, 30));
+        return ThreadLocalRandom.current().nextLong(ceiling / 2, ceiling + 1);
+    }
+
+    public static boolean isRetryable(Throwable e) {
+        if (e instanceof APIException) {
+            Integer status = ((APIException) e).getStatus();
+            if (status == null) {
+                // no response from the cloud at all
+                return true;
+            }
+            return status == 408 || status == 429 || status >= 500;
+        }
+        if (e instanceof FileNotFoundException) {
+            return false;
+        }
+        if (e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException)) {
+            return false;
+        }
+        return e instanceof IOException;
+    }
+
+    public static boolean isAuthError(Throwable e) {
+        if (e instanceof APIException) {
+            Integer status = ((APIException) e).getStatus();
+            return status != null && (status == 401 || status == 403);
+        }
+        return false;
+    }
+}
@@ -0,0 +1,98 @@
+package com.testdroid.jenkins.utils;
+
+import com.testdroid.api.model.APITestRunConfig;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Testdroid Run in Cloud plugin
+ *
+ * https://git@github.com/jenkinsci/testdroid-run-in-cloud
+ *
+ * Usage:
+ * Remembers the test run configuration last applied to each project together with the values of the fields the
+ * plugin sets. Next build sends only the fields whose values differ, or nothing at all. Entries expire, so changes
+ * made in the cloud outside of Jenkins are picked up eventually. Callers must hold the project lock.
+ *
+ * @author info@bitbar.com
+ */
+public class TestRunConfigCache {
+
+    private static final long TTL = TimeUnit.MINUTES.toMillis(10);
+
+    private static final TestRunConfigCache INSTANCE = new TestRunConfigCache();
+
+    private final ConcurrentMap<Long, Entry> entries = new ConcurrentHashMap<>();
+
+    public static TestRunConfigCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return last applied configuration of the project, or null when it is not known
+     */
+    public APITestRunConfig get(Long projectId) {
+        Entry entry = getEntry(projectId);
+        return entry != null ? entry.config : null;
+    }
+
+    /**
+     * @param fields values of configuration fields to be applied
+     * @return fields differing from the last applied ones, empty when nothing changed, null when the last applied
+     * configuration is not known
+     */
+    public Map<String, Object> getChanges(Long projectId, Map<String, Object> fields) {
+        Entry entry = entries.get(projectId);
+        if (entry == null) {
+            return null;
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        for (Map.Entry<String, Object> field : fields.entrySet()) {
+            if (!entry.fields.containsKey(field.getKey())
+                    || !Objects.equals(entry.fields.get(field.getKey()), field.getValue())) {
+                result.put(field.getKey(), field.getValue());
+            }
+        }
+        return result;
+    }
+
+    public void put(Long projectId, Map<String, Object> fields, APITestRunConfig config) {
+        entries.put(projectId, new Entry(new LinkedHashMap<>(fields), config));
+    }
+
+    public void invalidate(Long projectId) {
+        entries.remove(projectId);
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    private Entry getEntry(Long projectId) {
+        Entry entry = entries.get(projectId);
+        if (entry != null && System.currentTimeMillis() - entry.created > TTL) {
+            entries.remove(projectId, entry);
+            return null;
+        }
+        return entry;
+    }
+
+    private static class Entry {
+
+        private final Map<String, Object> fields;
+
+        private final APITestRunConfig config;
+
+        private final long created = System.currentTimeMillis();
+
+        private Entry(Map<String, Object> fields, APITestRunConfig config) {
+            this.fields = fields;
+            this.config = config;
+        }
+    }
+}
@@ -4,9 +4,22 @@ import com.testdroid.api.APIClient;
 import com.testdroid.api.APIException;
 import com.testdroid.api.DefaultAPIClient;
 import com.testdroid.api.model.APIUser;
+import com.testdroid.jenkins.remotesupport.FileDigestCalculator;
 import org.apache.commons.lang.StringUtils;
 import org.apache.http.HttpHost;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -16,7 +29,11 @@ import java.util.logging.Logger;
  * https://git@github.com/jenkinsci/testdroid-run-in-cloud
  *
  * Usage:
- * @TODO
+ * Registry of API clients keyed by a fingerprint of credentials, endpoint and proxy settings. Every distinct set of
+ * settings gets exactly one client, shared by all threads, so connections and access tokens of the client are reused
+ * by all builds. Current instance is swapped atomically when settings are saved, builds already running keep the
+ * instance they started with. Clients in use are replaced by freshly authenticated ones in the background before
+ * their access token expires.
  *
  * @author info@bitbar.com
  */
@@ -26,102 +43,371 @@ public class TestdroidApiUtil {
 
     private static final Logger LOGGER = Logger.getLogger(TestdroidApiUtil.class.getName());
 
-    private static TestdroidApiUtil instance;
+    // how long the authenticated user is reused, roles and projects of the account rarely change
+    private static final long USER_TTL = TimeUnit.SECONDS.toMillis(60);
 
-    private APIClient client;
+    // access tokens are renewed well before the cloud expires them
+    private static final long CLIENT_RENEWAL_INTERVAL = TimeUnit.MINUTES.toMillis(45);
 
-    private String cloudUrl;
+    // replaced clients are closed after this time, calls started with them have finished by then
+    private static final long REPLACED_CLIENT_GRACE = TimeUnit.MINUTES.toMillis(5);
 
-    private String email;
+    private static final ScheduledExecutorService RENEWAL_EXECUTOR = Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+                Thread thread = new Thread(runnable, "Testdroid API client renewal");
+                thread.setDaemon(true);
+                return thread;
+            });
 
-    private boolean isProxy;
+    private static final ConcurrentMap<String, TestdroidApiUtil> REGISTRY = new ConcurrentHashMap<>();
 
-    private boolean noCheckCertificate;
+    private static final AtomicReference<TestdroidApiUtil> CURRENT = new AtomicReference<>();
 
-    private String password;
+    private final String fingerprint;
 
-    private String proxyHost;
+    private volatile APIClient client;
 
-    private String proxyPassword;
+    private final String cloudUrl;
 
-    private Integer proxyPort;
+    private final String email;
 
-    private String proxyUser;
+    private final boolean isProxy;
+
+    private final boolean noCheckCertificate;
+
+    private final String password;
+
+    private final String proxyHost;
+
+    private final String proxyPassword;
+
+    private final Integer proxyPort;
+
+    private final String proxyUser;
+
+    private volatile CachedUser cachedUser;
+
+    private volatile long lastUsed;
+
+    private final ReentrantLock renewLock = new ReentrantLock();
+
+    private ScheduledFuture<?> renewal;
+
+    private CompletableFuture<APIUser> userRefresh;
 
     private TestdroidApiUtil(
-            String email, String password, String cloudUrl,
-            boolean privateInstanceState, boolean noCheckCertificate,
-            boolean isProxy, String proxyHost, Integer proxyPort,
-            String proxyUser, String proxyPassword) {
+            String fingerprint, String email, String password, String cloudUrl, boolean noCheckCertificate,
+            boolean isProxy, String proxyHost, Integer proxyPort, String proxyUser, String proxyPassword) {
+        this.fingerprint = fingerprint;
         this.email = email;
         this.password = password;
-        this.cloudUrl = (!privateInstanceState || StringUtils.isEmpty(cloudUrl)) ? CLOUD_ENDPOINT : cloudUrl;
+        this.cloudUrl = cloudUrl;
         this.noCheckCertificate = noCheckCertificate;
         this.isProxy = isProxy;
+        this.proxyHost = proxyHost;
+        this.proxyPort = proxyPort;
+        this.proxyUser = proxyUser;
+        this.proxyPassword = proxyPassword;
+    }
 
-        if (isProxy) {
-            this.proxyHost = proxyHost;
-            this.proxyPort = proxyPort;
-            this.proxyUser = proxyUser;
-            this.proxyPassword = proxyPassword;
+    /**
+     * @return current instance, or the instance for given settings when there is no current one yet
+     */
+    public static TestdroidApiUtil init(
+            String email, String password, String cloudUrl,
+            boolean privateInstanceState, boolean noCheckCertificate,
+            boolean isProxy, String proxyHost, Integer proxyPort,
+            String proxyUser, String proxyPassword) {
+        TestdroidApiUtil result = get(email, password, cloudUrl, privateInstanceState, noCheckCertificate, isProxy,
+                proxyHost, proxyPort, proxyUser, proxyPassword);
+        return CURRENT.compareAndSet(null, result) ? result : CURRENT.get();
+    }
+
+    /**
+     * Makes the instance for given settings the current one. Instances for other settings are dropped from the
+     * registry, their users can still finish with them.
+     */
+    public static TestdroidApiUtil rotate(
+            String email, String password, String cloudUrl,
+            boolean privateInstanceState, boolean noCheckCertificate,
+            boolean isProxy, String proxyHost, Integer proxyPort,
+            String proxyUser, String proxyPassword) {
+        TestdroidApiUtil result = get(email, password, cloudUrl, privateInstanceState, noCheckCertificate, isProxy,
+                proxyHost, proxyPort, proxyUser, proxyPassword);
+        // settings were saved, account details might have changed even with the same credentials
+        result.invalidateUser();
+        TestdroidApiUtil previous = CURRENT.getAndSet(result);
+        if (previous != null && previous != result) {
+            REGISTRY.remove(previous.fingerprint, previous);
+            previous.cancelRenewal();
+            LOGGER.log(Level.FINE, "API client rotated");
         }
+        return result;
     }
 
-    public static TestdroidApiUtil init(
+    /**
+     * @return the instance for given settings, created when needed
+     */
+    public static TestdroidApiUtil get(
             String email, String password, String cloudUrl,
             boolean privateInstanceState, boolean noCheckCertificate,
             boolean isProxy, String proxyHost, Integer proxyPort,
             String proxyUser, String proxyPassword) {
-        if (instance == null) {
-            instance = new TestdroidApiUtil(
-                    email, password, cloudUrl,
-                    privateInstanceState, noCheckCertificate,
-                    isProxy, proxyHost, proxyPort,
-                    proxyUser, proxyPassword);
+        String finalCloudUrl = (!privateInstanceState || StringUtils.isEmpty(cloudUrl)) ? CLOUD_ENDPOINT : cloudUrl;
+        String finalProxyHost = isProxy ? proxyHost : null;
+        Integer finalProxyPort = isProxy ? proxyPort : null;
+        String finalProxyUser = isProxy ? proxyUser : null;
+        String finalProxyPassword = isProxy ? proxyPassword : null;
+        String fingerprint = fingerprint(email, password, finalCloudUrl, String.valueOf(noCheckCertificate),
+                String.valueOf(isProxy), finalProxyHost, String.valueOf(finalProxyPort), finalProxyUser,
+                finalProxyPassword);
+        return REGISTRY.computeIfAbsent(fingerprint, key -> new TestdroidApiUtil(key, email, password,
+                finalCloudUrl, noCheckCertificate, isProxy, finalProxyHost, finalProxyPort, finalProxyUser,
+                finalProxyPassword));
+    }
+
+    /**
+     * Drops given instance from the registry, unless it is the current one. Its users can still finish with it.
+     */
+    public static void evict(TestdroidApiUtil superseded) {
+        if (CURRENT.get() != superseded) {
+            REGISTRY.remove(superseded.fingerprint, superseded);
+            superseded.cancelRenewal();
+            superseded.invalidateUser();
         }
-        return instance;
     }
 
+    /**
+     * Drops all instances, next {@link #init} creates a new current one.
+     */
     public static void clean() {
-        instance = null;
+        TestdroidApiUtil previous = CURRENT.getAndSet(null);
+        if (previous != null) {
+            previous.invalidateUser();
+        }
+        for (TestdroidApiUtil instance : REGISTRY.values()) {
+            instance.cancelRenewal();
+        }
+        REGISTRY.clear();
     }
 
     public static TestdroidApiUtil getInstance() {
-        return instance;
+        return CURRENT.get();
     }
 
     public static boolean isInitialized() {
-        return instance != null;
+        return CURRENT.get() != null;
     }
 
     public APIClient getTestdroidAPIClient() {
-        if (client == null) {
-            if (isProxy) {
-                HttpHost proxy = proxyPort != null ? new HttpHost(proxyHost, proxyPort, "http")
-                        : new HttpHost(proxyHost);
-                client = StringUtils
-                        .isBlank(proxyUser) ? new DefaultAPIClient(cloudUrl, email, password, proxy, noCheckCertificate)
-                        : new DefaultAPIClient(cloudUrl, email, password, proxy, proxyUser, proxyPassword,
-                        noCheckCertificate);
-            } else {
-                client = new DefaultAPIClient(cloudUrl, email, password, noCheckCertificate);
+        lastUsed = System.currentTimeMillis();
+        APIClient result = client;
+        if (result == null) {
+            synchronized (this) {
+                result = client;
+                if (result == null) {
+                    result = createClient();
+                    client = result;
+                    scheduleRenewal();
+                }
             }
         }
+        return result;
+    }
+
+    private APIClient createClient() {
+        if (isProxy) {
+            HttpHost proxy = proxyPort != null ? new HttpHost(proxyHost, proxyPort, "http")
+                    : new HttpHost(proxyHost);
+            return StringUtils.isBlank(proxyUser) ?
+                    new DefaultAPIClient(cloudUrl, email, password, proxy, noCheckCertificate) :
+                    new DefaultAPIClient(cloudUrl, email, password, proxy, proxyUser, proxyPassword,
+                            noCheckCertificate);
+        }
+        return new DefaultAPIClient(cloudUrl, email, password, noCheckCertificate);
+    }
 
-        return client;
+    /**
+     * Replaces given client with a new one, authenticated before it is handed out. One renewal runs at a time,
+     * callers waiting for it reuse its client.
+     */
+    private APIUser renewClient(APIClient stale) throws APIException {
+        renewLock.lock();
+        try {
+            APIClient current = client;
+            if (current != null && current != stale) {
+                // renewed while waiting for the lock
+                return current.me();
+            }
+            APIClient fresh = createClient();
+            APIUser user = RetryPolicy.DEFAULT.execute("Getting user", null, fresh::me);
+            replaceClient(fresh, user);
+            return user;
+        } finally {
+            renewLock.unlock();
+        }
     }
 
+    /**
+     * Swaps in a new authenticated client before the access token of the current one expires, so builds don't
+     * run into an expired token. Clients nobody used since the last renewal are left to expire.
+     */
+    private void renewInBackground() {
+        if (REGISTRY.get(fingerprint) != this) {
+            cancelRenewal();
+            return;
+        }
+        if (System.currentTimeMillis() - lastUsed > CLIENT_RENEWAL_INTERVAL || !renewLock.tryLock()) {
+            return;
+        }
+        try {
+            APIClient fresh = createClient();
+            APIUser user = fresh.me();
+            replaceClient(fresh, user);
+            LOGGER.log(Level.FINE, "API client renewed");
+        } catch (APIException | RuntimeException e) {
+            LOGGER.log(Level.INFO, "API client cannot be renewed, current one is kept", e);
+        } finally {
+            renewLock.unlock();
+        }
+    }
+
+    /**
+     * Swaps in given authenticated client. Entities loaded through the replaced one are dropped from caches, so they
+     * don't keep it in use, and the replaced client is closed once calls started with it have finished.
+     */
+    private void replaceClient(APIClient fresh, APIUser user) {
+        APIClient replaced;
+        synchronized (this) {
+            replaced = client;
+            client = fresh;
+        }
+        cachedUser = new CachedUser(user);
+        TestRunConfigCache.getInstance().clear();
+        if (replaced != null && replaced != fresh) {
+            RENEWAL_EXECUTOR.schedule(() -> close(replaced), REPLACED_CLIENT_GRACE, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Releases connections of given client. Clients which can't be closed release them once they are not referenced
+     * anymore.
+     */
+    private static void close(APIClient replaced) {
+        if (replaced instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable) replaced).close();
+            } catch (Exception e) {
+                LOGGER.log(Level.FINE, "Replaced API client cannot be closed", e);
+            }
+        }
+    }
+
+    private synchronized void scheduleRenewal() {
+        if (renewal == null) {
+            renewal = RENEWAL_EXECUTOR.scheduleWithFixedDelay(this::renewInBackground, CLIENT_RENEWAL_INTERVAL,
+                    CLIENT_RENEWAL_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private synchronized void cancelRenewal() {
+        if (renewal != null) {
+            renewal.cancel(false);
+            renewal = null;
+        }
+    }
+
+    private static String fingerprint(String... values) {
+        MessageDigest digest = FileDigestCalculator.newDigest();
+        for (String value : values) {
+            digest.update(String.valueOf(value).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+        }
+        return FileDigestCalculator.toHex(digest.digest());
+    }
+
+    /**
+     * @return authenticated user, shared by all callers for a short time. Concurrent callers wait for one request
+     * instead of asking the cloud each.
+     */
     public APIUser getUser() throws APIException {
+        CachedUser cached = cachedUser;
+        if (cached != null && !cached.isExpired()) {
+            return cached.user;
+        }
+        CompletableFuture<APIUser> refresh;
+        boolean refreshing = false;
+        synchronized (this) {
+            if (userRefresh == null) {
+                userRefresh = new CompletableFuture<>();
+                refreshing = true;
+            }
+            refresh = userRefresh;
+        }
+        if (refreshing) {
+            try {
+                APIUser user = fetchUser();
+                cachedUser = new CachedUser(user);
+                refresh.complete(user);
+                return user;
+            } catch (APIException | RuntimeException e) {
+                refresh.completeExceptionally(e);
+                throw e;
+            } finally {
+                synchronized (this) {
+                    userRefresh = null;
+                }
+            }
+        }
+        try {
+            return refresh.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof APIException) {
+                throw (APIException) e.getCause();
+            }
+            throw (RuntimeException) e.getCause();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new APIException("Interrupted while getting user");
+        }
+    }
+
+    /**
+     * Forgets the cached user, e.g. after the cloud rejected the credentials.
+     */
+    public void invalidateUser() {
+        cachedUser = null;
+    }
+
+    private APIUser fetchUser() throws APIException {
         APIUser user;
+        APIClient current = getTestdroidAPIClient();
         try {
-            user = getTestdroidAPIClient().me();
+            user = current.me();
         } catch (APIException e) {
+            if (!RetryPolicy.isAuthError(e) && !RetryPolicy.isRetryable(e)) {
+                throw e;
+            }
             LOGGER.log(Level.INFO, "ApiException occurred during get user from client. Client will be recreated");
             //if sth happen to cached client(probably problem with refreshing access token) then we create client again
-            client = null;
-            user = getTestdroidAPIClient().me();
+            user = renewClient(current);
         }
 
         return user;
     }
+
+    private static class CachedUser {
+
+        private final APIUser user;
+
+        private final long created = System.currentTimeMillis();
+
+        private CachedUser(APIUser user) {
+            this.user = user;
+        }
+
+        private boolean isExpired() {
+            return System.currentTimeMillis() - created > USER_TTL;
+        }
+    }
 }
@@ -0,0 +1,114 @@
+package com.testdroid.jenkins.utils;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Testdroid Run in Cloud plugin
+ *
+ * https://git@github.com/jenkinsci/testdroid-run-in-cloud
+ *
+ * Usage:
+ * Remembers ids of files already uploaded to the cloud, keyed by cloud, account, project, file type and file
+ * content digest, so that byte-identical files don't have to be uploaded again. Least recently used entries are evicted when the
+ * cache is full.
+ *
+ * @author info@bitbar.com
+ */
+public class UploadCache {
+
+    public static final int DEFAULT_TTL_MINUTES = 60;
+
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+
+    private static final UploadCache INSTANCE = new UploadCache();
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long ttl = TimeUnit.MINUTES.toMillis(DEFAULT_TTL_MINUTES);
+
+    private int maxEntries = DEFAULT_MAX_ENTRIES;
+
+    public static UploadCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param ttlMinutes how long an uploaded file id is reused, 0 disables the cache
+     * @param maxEntries maximum number of remembered file ids
+     */
+    public synchronized void setLimits(int ttlMinutes, int maxEntries) {
+        this.ttl = TimeUnit.MINUTES.toMillis(Math.max(ttlMinutes, 0));
+        this.maxEntries = Math.max(maxEntries, 0);
+        evict();
+    }
+
+    public synchronized boolean isEnabled() {
+        return ttl > 0 && maxEntries > 0;
+    }
+
+    /**
+     * @param scope cloud URL and account the file was uploaded with
+     */
+    public synchronized Long get(String scope, long projectId, String fileType, String digest) {
+        String key = key(scope, projectId, fileType, digest);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.isExpired(ttl)) {
+            entries.remove(key);
+            return null;
+        }
+        return entry.fileId;
+    }
+
+    public synchronized void put(String scope, long projectId, String fileType, String digest, Long fileId) {
+        if (isEnabled() && digest != null && fileId != null) {
+            entries.put(key(scope, projectId, fileType, digest), new Entry(fileId));
+            evict();
+        }
+    }
+
+    /**
+     * Forgets given file id, e.g. when the cloud doesn't accept it anymore.
+     */
+    public synchronized void invalidate(Long fileId) {
+        entries.values().removeIf(entry -> entry.fileId.equals(fileId));
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next().getValue();
+            if (entries.size() > maxEntries || entry.isExpired(ttl)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private static String key(String scope, long projectId, String fileType, String digest) {
+        return String.format("%s:%d:%s:%s", scope, projectId, fileType, digest);
+    }
+
+    private static class Entry {
+
+        private final Long fileId;
+
+        private final long created = System.currentTimeMillis();
+
+        private Entry(Long fileId) {
+            this.fileId = fileId;
+        }
+
+        private boolean isExpired(long ttl) {
+            return System.currentTimeMillis() - created > ttl;
+        }
+    }
+}
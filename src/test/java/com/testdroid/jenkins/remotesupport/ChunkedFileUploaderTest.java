@@ -0,0 +1,202 @@
+package com.testdroid.jenkins.remotesupport;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.testdroid.api.APIException;
+import com.testdroid.jenkins.utils.RetryPolicy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Testdroid Run in Cloud plugin
+ *
+ * https://git@github.com/jenkinsci/testdroid-run-in-cloud
+ *
+ * Usage:
+ * Runs ChunkedFileUploader against a stub resumable upload endpoint on the loopback interface.
+ *
+ * @author info@bitbar.com
+ */
+public class ChunkedFileUploaderTest {
+
+    private static final int CHUNK_SIZE = 1024;
+
+    private static final String TOKEN = "upload-token";
+
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+)");
+
+    private HttpServer server;
+
+    private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+
+    private final List<String> authorizations = new ArrayList<>();
+
+    private final AtomicInteger chunkRequests = new AtomicInteger();
+
+    // number of the chunk request answered with 503, 0 for none
+    private volatile int failingChunkRequest;
+
+    // status returned when an upload session is requested, 0 for success
+    private volatile int sessionStatus;
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/upload", this::handleStart);
+        server.createContext("/session", this::handleChunk);
+        server.start();
+        file = File.createTempFile("chunked-upload", ".apk");
+        byte[] content = new byte[CHUNK_SIZE * 2 + CHUNK_SIZE / 2];
+        new Random(1).nextBytes(content);
+        Files.write(file.toPath(), content);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        file.delete();
+    }
+
+    @Test
+    public void uploadsFileInChunksWithToken() throws Exception {
+        Long fileId = newUploader().upload(file, 1, "APPLICATION", "application/octet-stream");
+
+        assertEquals(Long.valueOf(42), fileId);
+        assertArrayEquals(Files.readAllBytes(file.toPath()), received.toByteArray());
+        assertEquals(3, chunkRequests.get());
+        for (String authorization : authorizations) {
+            assertEquals("Bearer " + TOKEN, authorization);
+        }
+    }
+
+    @Test
+    public void resumesAfterServerError() throws Exception {
+        failingChunkRequest = 2;
+        ChunkedFileUploader uploader = newUploader();
+        try {
+            uploader.upload(file, 1, "APPLICATION", "application/octet-stream");
+            fail("Upload should fail with the server error");
+        } catch (APIException e) {
+            assertEquals(Integer.valueOf(503), e.getStatus());
+            assertTrue(RetryPolicy.isRetryable(e));
+        }
+
+        Long fileId = uploader.upload(file, 1, "APPLICATION", "application/octet-stream");
+
+        assertEquals(Long.valueOf(42), fileId);
+        // the first chunk is not sent again
+        assertArrayEquals(Files.readAllBytes(file.toPath()), received.toByteArray());
+    }
+
+    @Test
+    public void rejectedTokenIsNotRetried() throws Exception {
+        sessionStatus = 401;
+        try {
+            newUploader().upload(file, 1, "APPLICATION", "application/octet-stream");
+            fail("Upload should be rejected");
+        } catch (APIException e) {
+            assertEquals(Integer.valueOf(401), e.getStatus());
+            assertFalse(RetryPolicy.isRetryable(e));
+        }
+        assertEquals(0, chunkRequests.get());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void plainHttpToRemoteHostIsRefused() {
+        new ChunkedFileUploader("http://192.0.2.1/upload", TOKEN, null, null, false, CHUNK_SIZE,
+                new PrintStream(new ByteArrayOutputStream()));
+    }
+
+    private ChunkedFileUploader newUploader() {
+        return new ChunkedFileUploader(String.format("http://%s:%d/upload",
+                InetAddress.getLoopbackAddress().getHostAddress(), server.getAddress().getPort()), TOKEN, null, null,
+                false, CHUNK_SIZE, new PrintStream(new ByteArrayOutputStream()));
+    }
+
+    private void handleStart(HttpExchange exchange) throws IOException {
+        synchronized (this) {
+            authorizations.add(exchange.getRequestHeaders().getFirst("Authorization"));
+        }
+        drain(exchange.getRequestBody());
+        if (sessionStatus != 0) {
+            respond(exchange, sessionStatus, "");
+            return;
+        }
+        exchange.getResponseHeaders().set("Location", "/session/1");
+        respond(exchange, 201, "");
+    }
+
+    private synchronized void handleChunk(HttpExchange exchange) throws IOException {
+        authorizations.add(exchange.getRequestHeaders().getFirst("Authorization"));
+        byte[] body = drain(exchange.getRequestBody());
+        String contentRange = exchange.getRequestHeaders().getFirst("Content-Range");
+        Matcher matcher = CONTENT_RANGE.matcher(contentRange);
+        if (matcher.matches()) {
+            if (chunkRequests.incrementAndGet() == failingChunkRequest) {
+                respond(exchange, 503, "");
+                return;
+            }
+            if (Long.parseLong(matcher.group(1)) == received.size()) {
+                received.write(body);
+            }
+        }
+        long total = Long.parseLong(contentRange.substring(contentRange.lastIndexOf('/') + 1));
+        if (received.size() == total) {
+            respond(exchange, 200, "{\"id\": 42}");
+            return;
+        }
+        if (received.size() > 0) {
+            exchange.getResponseHeaders().set("Range", String.format("bytes=0-%d", received.size() - 1));
+        }
+        respond(exchange, 308, "");
+    }
+
+    private static byte[] drain(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            result.write(buffer, 0, read);
+        }
+        return result.toByteArray();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length == 0) {
+            exchange.sendResponseHeaders(status, -1);
+            exchange.close();
+            return;
+        }
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream outputStream = exchange.getResponseBody()) {
+            outputStream.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.testdroid.jenkins.scheduler;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Testdroid Run in Cloud plugin
+ *
+ * https://git@github.com/jenkinsci/testdroid-run-in-cloud
+ *
+ * Usage:
+ * Checks intervals computed for typical combinations of test run age, progress and project history.
+ *
+ * @author info@bitbar.com
+ */
+public class AdaptivePollingIntervalTest {
+
+    private static final long FLOOR = seconds(10);
+
+    private static final long CEILING = seconds(600);
+
+    // age, finished sessions, total sessions, historical duration, expected interval
+    private static final Object[][] CASES = {
+            // nothing known, half of the age, bounded by floor and ceiling
+            {0L, null, null, null, FLOOR},
+            {seconds(10), null, null, null, FLOOR},
+            {seconds(100), null, null, null, seconds(50)},
+            {seconds(3000), null, null, null, CEILING},
+            // progress of device sessions
+            {seconds(100), 1, 4, null, seconds(150)},
+            {seconds(100), 2, 4, null, seconds(50)},
+            {seconds(100), 4, 4, null, FLOOR},
+            {seconds(1000), 1, 10, null, CEILING},
+            // no finished or no sessions at all say nothing about progress
+            {seconds(100), 0, 4, null, seconds(50)},
+            {seconds(100), 0, 0, null, seconds(50)},
+            // historical duration of the project
+            {seconds(100), null, null, seconds(400), seconds(150)},
+            {seconds(100), null, null, seconds(110), FLOOR},
+            // run already takes longer than usual, history says nothing
+            {seconds(100), null, null, seconds(50), seconds(50)},
+            // the more optimistic estimate wins
+            {seconds(100), 2, 4, seconds(400), seconds(50)},
+            {seconds(100), 1, 4, seconds(200), seconds(50)},
+    };
+
+    @Test
+    public void intervalFollowsEstimatedRemainingTime() {
+        AdaptivePollingInterval interval = new AdaptivePollingInterval(FLOOR, CEILING);
+        for (Object[] testCase : CASES) {
+            assertEquals(String.format("age %s, sessions %s/%s, history %s", testCase[0], testCase[1], testCase[2],
+                    testCase[3]), (long) testCase[4], interval.getInterval((Long) testCase[0],
+                    (Integer) testCase[1], (Integer) testCase[2], (Long) testCase[3]));
+        }
+    }
+
+    @Test
+    public void ceilingBelowFloorIsRaisedToFloor() {
+        AdaptivePollingInterval interval = new AdaptivePollingInterval(FLOOR, seconds(5));
+        // age, expected interval
+        long[][] cases = {
+                {0, FLOOR},
+                {seconds(20), FLOOR},
+                {seconds(3000), FLOOR},
+        };
+        for (long[] testCase : cases) {
+            assertEquals("age " + testCase[0], testCase[1], interval.getInterval(testCase[0], null, null, null));
+        }
+    }
+
+    @Test
+    public void equalFloorAndCeilingGiveFixedInterval() {
+        AdaptivePollingInterval interval = new AdaptivePollingInterval(seconds(60), seconds(60));
+        long[] ages = {0, seconds(30), seconds(120), seconds(100000)};
+        for (long age : ages) {
+            assertEquals("age " + age, seconds(60), interval.getInterval(age, 1, 2, seconds(200)));
+        }
+    }
+
+    private static long seconds(long seconds) {
+        return TimeUnit.SECONDS.toMillis(seconds);
+    }
+}
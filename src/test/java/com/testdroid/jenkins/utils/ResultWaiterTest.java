@@ -0,0 +1,223 @@
+package com.testdroid.jenkins.utils;
+
+import com.testdroid.api.model.APITestRun;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Testdroid Run in Cloud plugin
+ *
+ * https://git@github.com/jenkinsci/testdroid-run-in-cloud
+ *
+ * Usage:
+ * Calls ResultWaiter from many threads at once, the way builds, the hook and the poller do.
+ *
+ * @author info@bitbar.com
+ */
+public class ResultWaiterTest {
+
+    private static final Long PROJECT_ID = 1L;
+
+    private static final int THREADS = 16;
+
+    private static final int ROUNDS = 500;
+
+    private ResultWaiter waiter;
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        waiter = new ResultWaiter();
+        executor = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void completionRacingWithRegistrationIsNotLost() throws Exception {
+        List<Future<CompletableFuture<APITestRun>>> registrations = new ArrayList<>();
+        for (long testRunId = 0; testRunId < ROUNDS; testRunId++) {
+            Long id = testRunId;
+            CountDownLatch start = new CountDownLatch(1);
+            registrations.add(executor.submit(() -> {
+                start.await();
+                return waiter.register(PROJECT_ID, id);
+            }));
+            executor.submit(() -> {
+                start.await();
+                waiter.complete(id, null);
+                return null;
+            });
+            start.countDown();
+        }
+        for (Future<CompletableFuture<APITestRun>> registration : registrations) {
+            registration.get(10, TimeUnit.SECONDS).get(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void allWaitersOfOneTestRunGetTheSameResult() throws Exception {
+        Long testRunId = 7L;
+        APITestRun testRun = new APITestRun();
+        CountDownLatch registered = new CountDownLatch(THREADS);
+        List<Future<APITestRun>> results = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            results.add(executor.submit(() -> {
+                CompletableFuture<APITestRun> future = waiter.register(PROJECT_ID, testRunId);
+                registered.countDown();
+                try {
+                    return future.get(10, TimeUnit.SECONDS);
+                } finally {
+                    waiter.unregister(testRunId);
+                }
+            }));
+        }
+        assertTrue(registered.await(10, TimeUnit.SECONDS));
+        assertEquals(PROJECT_ID, waiter.getAwaitedProjectId(testRunId));
+
+        waiter.complete(testRunId, testRun);
+        // a late duplicate, e.g. the hook after the poller, must not replace the result
+        waiter.complete(testRunId, new APITestRun());
+
+        for (Future<APITestRun> result : results) {
+            assertSame(testRun, result.get(10, TimeUnit.SECONDS));
+        }
+        assertNull(waiter.getAwaitedProjectId(testRunId));
+    }
+
+    @Test
+    public void waiterRegisteringAfterOthersLeftSeesCompletion() throws Exception {
+        Long testRunId = 8L;
+        CompletableFuture<APITestRun> first = waiter.register(PROJECT_ID, testRunId);
+        waiter.complete(testRunId, null);
+        assertTrue(first.isDone());
+        waiter.unregister(testRunId);
+
+        assertTrue(waiter.register(PROJECT_ID, testRunId).isDone());
+        waiter.unregister(testRunId);
+    }
+
+    @Test
+    public void registerAndUnregisterRacesKeepCounting() throws Exception {
+        Long testRunId = 9L;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> workers = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            workers.add(executor.submit(() -> {
+                start.await();
+                for (int round = 0; round < ROUNDS; round++) {
+                    CompletableFuture<APITestRun> future = waiter.register(PROJECT_ID, testRunId);
+                    assertFalse(future.isDone());
+                    // this waiter is still registered, so the test run must be reported as awaited
+                    assertEquals(PROJECT_ID, waiter.getAwaitedProjectId(testRunId));
+                    waiter.unregister(testRunId);
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> worker : workers) {
+            worker.get(30, TimeUnit.SECONDS);
+        }
+        assertNull(waiter.getAwaitedProjectId(testRunId));
+
+        // everyone left, so a waiter registering now gets a fresh future which is completed normally
+        CompletableFuture<APITestRun> future = waiter.register(PROJECT_ID, testRunId);
+        assertFalse(future.isDone());
+        waiter.complete(testRunId, null);
+        assertTrue(future.isDone());
+        waiter.unregister(testRunId);
+    }
+
+    @Test
+    public void completionsDuringRegistrationChurnReachEveryLaterWaiter() throws Exception {
+        Long testRunId = 10L;
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch completed = new CountDownLatch(1);
+        List<Future<?>> workers = new ArrayList<>();
+        for (int i = 0; i < THREADS - 1; i++) {
+            workers.add(executor.submit(() -> {
+                start.await();
+                for (int round = 0; round < ROUNDS; round++) {
+                    boolean completedBefore = completed.getCount() == 0;
+                    CompletableFuture<APITestRun> future = waiter.register(PROJECT_ID, testRunId);
+                    try {
+                        if (completedBefore) {
+                            assertTrue(future.isDone());
+                        }
+                    } finally {
+                        waiter.unregister(testRunId);
+                    }
+                }
+                return null;
+            }));
+        }
+        workers.add(executor.submit(() -> {
+            start.await();
+            Thread.sleep(5);
+            waiter.complete(testRunId, null);
+            completed.countDown();
+            return null;
+        }));
+        start.countDown();
+        for (Future<?> worker : workers) {
+            worker.get(30, TimeUnit.SECONDS);
+        }
+        assertTrue(waiter.register(PROJECT_ID, testRunId).isDone());
+    }
+
+    @Test
+    public void unclaimedCompletionsAreCapped() throws Exception {
+        Long awaitedTestRunId = -1L;
+        CompletableFuture<APITestRun> awaited = waiter.register(PROJECT_ID, awaitedTestRunId);
+        // e.g. a burst of hook calls with made up ids
+        for (long testRunId = 0; testRunId < 10000; testRunId++) {
+            waiter.complete(testRunId, null);
+        }
+        assertTrue(waiter.register(PROJECT_ID, 0L).isDone());
+        assertFalse(waiter.register(PROJECT_ID, 9999L).isDone());
+
+        // test runs with a registered waiter are completed regardless
+        waiter.complete(awaitedTestRunId, null);
+        assertTrue(awaited.isDone());
+    }
+
+    @Test
+    public void prematureCompletionIsReopenedOnceForAllWaiters() throws Exception {
+        Long testRunId = 11L;
+        CompletableFuture<APITestRun> first = waiter.register(PROJECT_ID, testRunId);
+        CompletableFuture<APITestRun> second = waiter.register(PROJECT_ID, testRunId);
+        // hook called before the test run finished
+        waiter.complete(testRunId, null);
+
+        CompletableFuture<APITestRun> reopened = waiter.reopen(PROJECT_ID, testRunId, first);
+        assertFalse(reopened.isDone());
+        assertSame(reopened, waiter.reopen(PROJECT_ID, testRunId, second));
+        assertEquals(PROJECT_ID, waiter.getAwaitedProjectId(testRunId));
+
+        waiter.complete(testRunId, null);
+        assertTrue(reopened.isDone());
+        waiter.unregister(testRunId);
+        waiter.unregister(testRunId);
+    }
+}